@@ -0,0 +1,279 @@
+/*
+ * Activity feed
+ * =============================
+ *
+ * Tells users about the new jobs, degrees and friends of their
+ * connections.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class keeps the feed of every user as a ring buffer of the last
+ * FEED_SIZE events, in the FeedItem table on the user's shard (one row per
+ * slot, FeedHead counts the writes) and cached in memory.
+ *
+ * Hybrid fan-out:
+ *    - an event of a user with at most -Dfeed.fanoutLimit friends (default
+ *      1000) is written into the ring of every friend when it happens, one
+ *      statement per shard (fan-out on write)
+ *    - an event of a user with more friends is only written to the user's
+ *      own ActivityEvent rows, readers merge the recent events of those
+ *      friends into their feed (fan-out on read), so one action of a very
+ *      connected user does not turn into thousands of writes
+ *
+ * Every event is also kept in ActivityEvent, the outbox of its actor,
+ * which like a ring keeps only the newest FEED_SIZE events of the actor.
+ * Whether an actor's events are fanned out is stored with the data: a
+ * publish that skips the fan-out sets highDegree on the actor's FeedHead
+ * row, one that fans out clears it, and a feed merges the outboxes of the
+ * friends flagged there. So every process merges the same friends. A
+ * cached feed is read again from its table after CACHE_MILLIS, so writes
+ * of other processes show up.
+ *
+ * Feeds are ordered by createdAt, then eventId. The ids come from per
+ * process blocks of feed_seq, so they are unique but not in time order
+ * across processes.
+ *
+ */
+public class ActivityFeed {
+
+   public static final int FEED_SIZE = 200;
+   private static final int CACHED_FEEDS = 10000;
+   private static final long CACHE_MILLIS = 30 * 1000L;
+
+   // newest first
+   private static final Comparator<Event> NEWEST_FIRST =
+      Comparator.comparing((Event e) -> e.createdAt).thenComparingLong(e -> e.eventId).reversed();
+
+   public static class Event {
+      public final long eventId;
+      public final String actorId;
+      public final String kind;
+      public final String detail;
+      public final Timestamp createdAt;
+
+      Event(long eventId, String actorId, String kind, String detail, Timestamp createdAt) {
+         this.eventId = eventId;
+         this.actorId = actorId;
+         this.kind = kind;
+         this.detail = detail;
+         this.createdAt = createdAt;
+      }
+   }//end Event
+
+   // the last FEED_SIZE events of a feed or an outbox, and the high degree
+   // friends whose outboxes a feed merges
+   private static class Ring {
+      final Event[] items = new Event[FEED_SIZE];
+      int head = 0;
+      int size = 0;
+      List<String> merged = Collections.emptyList();
+      final long loadedAt = System.currentTimeMillis();
+
+      synchronized void push(Event e) {
+         items[head] = e;
+         head = (head + 1) % FEED_SIZE;
+         size = Math.min(size + 1, FEED_SIZE);
+      }
+
+      // newest first
+      synchronized List<Event> list() {
+         List<Event> out = new ArrayList<Event>(size);
+         for (int k = 1; k <= size; k++)
+            out.add(items[Math.floorMod(head - k, FEED_SIZE)]);
+         return out;
+      }
+   }//end Ring
+
+   private final ShardRouter shards;
+   private final MessageIdAllocator eventIds;
+   private final int fanoutLimit = Integer.getInteger("feed.fanoutLimit", 1000);
+   private final Map<String, Ring> feeds = lru();
+   private final Map<String, Ring> outboxes = lru();
+
+   /**
+    * @param shards placement of the users
+    * @param eventIds allocator over feed_seq, unique across shards
+    */
+   public ActivityFeed(ShardRouter shards, MessageIdAllocator eventIds) {
+      this.shards = shards;
+      this.eventIds = eventIds;
+   }//end ActivityFeed
+
+   /**
+    * Records an event of a user and delivers it to the user's friends.
+    *
+    * @param actorId the user the event is about
+    * @param kind "work", "edu" or "friend"
+    * @param detail what happened, e.g. "started as Engineer at Acme"
+    * @throws java.sql.SQLException when the event can not be stored
+    */
+   public void publish(String actorId, String kind, String detail) throws SQLException {
+      String actor = actorId.trim();
+      long id = eventIds.next();
+      // the outbox, the feeds and the caches all get the same time
+      Timestamp now = new Timestamp(System.currentTimeMillis());
+      ProfNetwork home = shards.forUser(actor);
+      // the outbox drops what falls out of the newest FEED_SIZE
+      home.executeBatch(Arrays.asList(String.format(
+         "insert into ActivityEvent (eventId, actorId, kind, detail, createdAt) values (%d, '%s', '%s', '%s', '%s')",
+         id, actor, kind, q(detail), now), String.format(
+         "delete from ActivityEvent where actorId = '%s' and (createdAt, eventId) < (select createdAt, eventId " +
+         "from ActivityEvent where actorId = '%s' order by createdAt desc, eventId desc offset %d limit 1)",
+         actor, actor, FEED_SIZE - 1)));
+      Event event = new Event(id, actor, kind, detail, now);
+      Ring outbox = cached(outboxes, actor);
+      if (outbox != null)
+         outbox.push(event);
+
+      List<List<String>> friends = home.executeQueryAndReturnResult(ProfNetwork.friendIdsQuery(actor));
+      if (friends.size() > fanoutLimit) {
+         home.executeUpdate(String.format(
+            "insert into FeedHead (userId, head, highDegree) values ('%s', 0, true) " +
+            "on conflict (userId) do update set highDegree = true", actor));
+         return;
+      }
+      home.executeUpdate(String.format("update FeedHead set highDegree = false where userId = '%s' and highDegree", actor));
+
+      // one ring write per shard for all friends on it
+      Map<Integer, List<String>> byShard = new HashMap<Integer, List<String>>();
+      for (List<String> row : friends)
+         byShard.computeIfAbsent(shards.shardOf(row.get(0)), s -> new ArrayList<String>()).add(row.get(0).trim());
+      for (Map.Entry<Integer, List<String>> part : byShard.entrySet()) {
+         StringBuilder ids = new StringBuilder();
+         for (String f : part.getValue())
+            ids.append(ids.length() == 0 ? "" : ",").append('\'').append(f).append('\'');
+         shards.get(part.getKey()).executeUpdate(String.format(
+            "with h as (insert into FeedHead (userId, head) select f, 0 from unnest(array[%s]::varchar[]) f " +
+            "on conflict (userId) do update set head = FeedHead.head + 1 returning userId, head) " +
+            "insert into FeedItem (userId, slot, eventId, actorId, kind, detail, createdAt) " +
+            "select h.userId, h.head %% %d, %d, '%s', '%s', '%s', '%s' from h " +
+            "on conflict (userId, slot) do update set eventId = excluded.eventId, actorId = excluded.actorId, " +
+            "kind = excluded.kind, detail = excluded.detail, createdAt = excluded.createdAt",
+            ids, FEED_SIZE, id, actor, kind, q(detail), now));
+         for (String f : part.getValue()) {
+            Ring feed = cached(feeds, f);
+            if (feed != null)
+               feed.push(event);
+         }
+      }
+   }//end publish
+
+   /**
+    * @param limit the most events to return
+    * @return the newest events of the user's feed, newest first
+    * @throws java.sql.SQLException when the feed can not be read
+    */
+   public List<Event> read(String userId, int limit) throws SQLException {
+      String user = userId.trim();
+      Ring feed = cached(feeds, user);
+      if (feed == null) {
+         feed = loadFeed(user);
+         synchronized (feeds) {
+            feeds.put(user, feed);
+         }
+      }
+      List<Event> events = feed.list();
+      if (!feed.merged.isEmpty()) {
+         for (String friend : feed.merged) {
+            Ring outbox = cached(outboxes, friend);
+            if (outbox == null) {
+               outbox = loadOutbox(friend);
+               synchronized (outboxes) {
+                  outboxes.put(friend, outbox);
+               }
+            }
+            events.addAll(outbox.list());
+         }
+         // events fanned out before their actor passed the limit are in both
+         Set<Long> seen = new HashSet<Long>();
+         List<Event> unique = new ArrayList<Event>(events.size());
+         for (Event e : events)
+            if (seen.add(e.eventId))
+               unique.add(e);
+         events = unique;
+      }
+      // pushes of this process come in write order, not time order
+      events.sort(NEWEST_FIRST);
+      return events.size() > limit ? new ArrayList<Event>(events.subList(0, limit)) : events;
+   }//end read
+
+   private Ring loadFeed(String user) throws SQLException {
+      ProfNetwork home = shards.forUser(user);
+      Ring feed = new Ring();
+      List<List<String>> rows = home.executeQueryAndReturnResult(String.format(
+         "select eventId, actorId, kind, detail, createdAt from FeedItem where userId = '%s' order by createdAt, eventId", user));
+      for (List<String> row : rows)
+         feed.push(event(row));
+      // the friends flagged on their own shards
+      Map<Integer, StringBuilder> byShard = new HashMap<Integer, StringBuilder>();
+      for (List<String> row : home.executeQueryAndReturnResult(ProfNetwork.friendIdsQuery(user))) {
+         StringBuilder ids = byShard.computeIfAbsent(shards.shardOf(row.get(0)), s -> new StringBuilder());
+         ids.append(ids.length() == 0 ? "" : ",").append('\'').append(row.get(0).trim()).append('\'');
+      }
+      Map<Integer, String> queries = new HashMap<Integer, String>();
+      for (Map.Entry<Integer, StringBuilder> part : byShard.entrySet())
+         queries.put(part.getKey(), String.format("select userId from FeedHead where highDegree and userId in (%s)", part.getValue()));
+      List<String> merged = new ArrayList<String>();
+      if (!queries.isEmpty())
+         for (List<String> row : shards.queryEach(queries))
+            merged.add(row.get(0).trim());
+      feed.merged = merged;
+      return feed;
+   }//end loadFeed
+
+   private Ring loadOutbox(String actor) throws SQLException {
+      Ring outbox = new Ring();
+      List<List<String>> rows = shards.forUser(actor).executeQueryAndReturnResult(String.format(
+         "select eventId, actorId, kind, detail, createdAt from ActivityEvent where actorId = '%s' order by createdAt desc, eventId desc limit %d",
+         actor, FEED_SIZE));
+      for (int k = rows.size() - 1; k >= 0; k--)
+         outbox.push(event(rows.get(k)));
+      return outbox;
+   }//end loadOutbox
+
+   // a cached ring that is still fresh, or null
+   private static Ring cached(Map<String, Ring> cache, String key) {
+      synchronized (cache) {
+         Ring ring = cache.get(key);
+         if (ring != null && System.currentTimeMillis() - ring.loadedAt > CACHE_MILLIS) {
+            cache.remove(key);
+            return null;
+         }
+         return ring;
+      }
+   }//end cached
+
+   private static Event event(List<String> row) {
+      return new Event(Long.parseLong(row.get(0).trim()), row.get(1).trim(), row.get(2).trim(), row.get(3), Timestamp.valueOf(row.get(4).trim()));
+   }//end event
+
+   private static Map<String, Ring> lru() {
+      return new LinkedHashMap<String, Ring>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+            return size() > CACHED_FEEDS;
+         }
+      };
+   }//end lru
+
+   private static String q(String value) {
+      return value.replace("'", "''");
+   }//end q
+
+}//end ActivityFeed
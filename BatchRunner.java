@@ -0,0 +1,416 @@
+/*
+ * Batch mode
+ * =============================
+ *
+ * Runs administrative commands from a file or stdin without the menus,
+ * e.g. mass profile updates, friend imports and message broadcasts.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class reads one JSON object per line, for example
+ *
+ *    {"op":"addWorkExp","user":"u1","company":"Acme","role":"Engineer","location":"Riverside","startDate":"2020-01-01","endDate":"2021-01-01"}
+ *    {"op":"addEduDet","user":"u1","institution":"UCR","major":"CS","degree":"BS","startDate":"2016-09-01","endDate":"2020-06-01"}
+ *    {"op":"sendRequest","user":"u1","to":"u2"}
+ *    {"op":"newMessage","user":"u1","to":"u2,u3,u4","contents":"Hello"}
+ *    {"op":"updateName","user":"u1","name":"Jane Doe"}
+ *    {"op":"updateEmail","user":"u1","email":"jane@example.com"}
+ *    {"op":"updateDate","user":"u1","dateOfBirth":"1990-01-01"}
+ *
+ * turns each command into statements on the shards they belong to, and
+ * groups the statements into chunks of chunkSize statements. Every chunk
+ * is one JDBC batch in one transaction.
+ *
+ * Chunks run on lanes, single threaded workers with their own connections.
+ * The statements of a user always go to the same lane of the user's shard,
+ * so they commit in file order: the last updateEmail of a user wins. A
+ * lane holds several users, lanes run in parallel.
+ *
+ * A command that writes to two shards (sendRequest, a message between
+ * users of different shards) commits on each shard in its own transaction.
+ * When one side fails the other side stays, the failure is reported.
+ *
+ * A line that is not a valid command, misses a field its op needs or has a
+ * date that is not yyyy-mm-dd is reported with its line number and skipped
+ * before any statement is built from it. Commands are
+ * not checked against the friend and rate limits of the menus, this mode
+ * is meant for admins.
+ *
+ */
+public class BatchRunner {
+
+   // fields every op needs besides "op" and "user"
+   private static final Map<String, String[]> REQUIRED = new HashMap<String, String[]>();
+   static {
+      REQUIRED.put("addWorkExp", new String[] { "company", "role", "location", "startDate", "endDate" });
+      REQUIRED.put("addEduDet", new String[] { "institution", "major", "degree", "startDate", "endDate" });
+      REQUIRED.put("sendRequest", new String[] { "to" });
+      REQUIRED.put("newMessage", new String[] { "to", "contents" });
+      REQUIRED.put("updateName", new String[] { "name" });
+      REQUIRED.put("updateEmail", new String[] { "email" });
+      REQUIRED.put("updateDate", new String[] { "dateOfBirth" });
+   }
+   private static final Set<String> DATES = new HashSet<String>(Arrays.asList("startDate", "endDate", "dateOfBirth"));
+
+   private static class Chunk {
+      final int shard;   // the lane of a chunk is on this shard
+      final List<String> sqls = new ArrayList<String>();
+      final List<Runnable> onCommit = new ArrayList<Runnable>();
+
+      Chunk(int shard) {
+         this.shard = shard;
+      }
+   }//end Chunk
+
+   private final ShardRouter shards;
+   private final String dbnames;
+   private final String dbport;
+   private final String user;
+   private final int chunkSize;
+   private final int lanesPerShard;
+   private final ExecutorService[] lanes;
+   private final Semaphore inFlight;
+   private final Chunk[] pending;
+   private final List<ShardRouter> opened = new CopyOnWriteArrayList<ShardRouter>();
+   private final ThreadLocal<ShardRouter> connections;
+
+   private long commands = 0;
+   private long invalid = 0;
+   private final AtomicLong statements = new AtomicLong();
+   private final AtomicLong committed = new AtomicLong();
+   private final AtomicLong failedChunks = new AtomicLong();
+   private final AtomicLong failedStatements = new AtomicLong();
+
+   BatchRunner(ShardRouter shards, String dbnames, String dbport, String user, int threads, int chunkSize) {
+      this.shards = shards;
+      this.dbnames = dbnames;
+      this.dbport = dbport;
+      this.user = user;
+      this.chunkSize = chunkSize;
+      // at least one lane per shard
+      this.lanesPerShard = Math.max(1, threads / shards.size());
+      this.lanes = new ExecutorService[shards.size() * lanesPerShard];
+      for (int l = 0; l < lanes.length; l++)
+         lanes[l] = Executors.newSingleThreadExecutor();
+      // bounds the chunks read ahead of the workers, memory stays flat
+      this.inFlight = new Semaphore(lanes.length * 2);
+      this.pending = new Chunk[lanes.length];
+      this.connections = ThreadLocal.withInitial(() -> {
+         try {
+            ShardRouter router = ShardRouter.connect(this.dbnames, this.dbport, this.user, "");
+            opened.add(router);
+            return router;
+         } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage());
+         }
+      });
+   }//end BatchRunner
+
+   /**
+    * Runs the commands of a file and prints a throughput summary.
+    *
+    * @param shards placement of the users, the same databases as dbnames
+    * @param input a file name, or "-" for stdin
+    * @param threads number of parallel workers, rounded down to a multiple
+    * of the number of shards and at least one per shard
+    * @param chunkSize number of statements per transaction
+    * @throws java.lang.Exception when the input can not be read
+    */
+   public static void run(ShardRouter shards, String dbnames, String dbport, String user,
+                          String input, int threads, int chunkSize) throws Exception {
+      BatchRunner batch = new BatchRunner(shards, dbnames, dbport, user, threads, chunkSize);
+      long start = System.nanoTime();
+      BufferedReader reader = input.equals("-")
+         ? new BufferedReader(new InputStreamReader(System.in))
+         : new BufferedReader(new FileReader(input));
+      try {
+         String line;
+         long lineNo = 0;
+         while ((line = reader.readLine()) != null) {
+            lineNo++;
+            if (line.trim().isEmpty())
+               continue;
+            batch.add(line, lineNo);
+         }
+         for (int l = 0; l < batch.pending.length; l++)
+            batch.submit(l);
+      } finally {
+         batch.finish();
+         reader.close();
+         for (ShardRouter router : batch.opened)
+            router.cleanup();
+      }
+      double secs = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+      System.out.println(String.format(
+         "Batch: %d commands (%d invalid), %d statements in %d transactions, %d statements in %d failed transactions, %.2f s, %.0f commands/s, %.0f statements/s",
+         batch.commands, batch.invalid, batch.statements.get(), batch.committed.get(),
+         batch.failedStatements.get(), batch.failedChunks.get(), secs, batch.commands / secs, batch.statements.get() / secs));
+   }//end run
+
+   // chunks already queued still commit, then the workers end
+   void finish() throws InterruptedException {
+      for (ExecutorService lane : lanes)
+         lane.shutdown();
+      for (ExecutorService lane : lanes)
+         lane.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+   }//end finish
+
+   void add(String line, long lineNo) throws Exception {
+      commands++;
+      Map<String, String> cmd;
+      try {
+         cmd = parse(line);
+      } catch (IllegalArgumentException e) {
+         reject(lineNo, line, e.getMessage());
+         return;
+      }
+      String op = cmd.get("op");
+      String u = cmd.get("user");
+      if (op == null || u == null || u.trim().isEmpty()) {
+         reject(lineNo, line, "no op or user");
+         return;
+      }
+      if (!REQUIRED.containsKey(op)) {
+         reject(lineNo, line, "unknown op " + op);
+         return;
+      }
+      for (String field : REQUIRED.get(op)) {
+         String value = cmd.get(field);
+         if (value == null || value.trim().isEmpty()) {
+            reject(lineNo, line, "missing " + field);
+            return;
+         }
+         if (DATES.contains(field)) {
+            try {
+               LocalDate.parse(value.trim());
+            } catch (DateTimeParseException e) {
+               reject(lineNo, line, field + " is not yyyy-mm-dd");
+               return;
+            }
+         }
+      }
+      switch (op) {
+         case "addWorkExp":
+            put(u, ProfNetwork.workExInsertSql(q(u), q(cmd.get("company")), q(cmd.get("role")), q(cmd.get("location")),
+                                               q(cmd.get("startDate")), q(cmd.get("endDate"))), null);
+            break;
+         case "addEduDet":
+            put(u, ProfNetwork.eduDetInsertSql(q(u), q(cmd.get("institution")), q(cmd.get("major")), q(cmd.get("degree")),
+                                               q(cmd.get("startDate")), q(cmd.get("endDate"))), null);
+            break;
+         case "sendRequest": {
+            String to = cmd.get("to");
+            put(to, ProfNetwork.requestInsertSql(q(to), q(u)), null);
+            put(u, ProfNetwork.requestInsertSql(q(u), q(to)), null);
+            put(to, ProfNetwork.requestNotifySql(q(to), q(u)), null);
+            break;
+         }
+         case "newMessage": {
+            String to = cmd.get("to");
+            // a comma separated list of receivers broadcasts the message
+            for (String receiver : to.split(",")) {
+               receiver = receiver.trim();
+               if (receiver.isEmpty())
+                  continue;
+               String sql = ProfNetwork.messageInsertSql(ProfNetwork.msgIds.next(), q(u), q(receiver), q(cmd.get("contents")));
+               put(receiver, sql, null);
+               if (shards.shardOf(receiver) != shards.shardOf(u))
+                  put(u, sql, null);
+            }
+            break;
+         }
+         case "updateName": {
+            String name = cmd.get("name");
+            put(u, ProfNetwork.userUpdateSql("name", q(name), q(u)), () -> ProfNetwork.directory.updateName(u, name));
+            break;
+         }
+         case "updateEmail": {
+            String email = cmd.get("email");
+            put(u, ProfNetwork.userUpdateSql("email", q(email), q(u)), () -> ProfNetwork.directory.updateEmail(u, email));
+            break;
+         }
+         case "updateDate":
+            put(u, ProfNetwork.userUpdateSql("dateofbirth", q(cmd.get("dateOfBirth")), q(u)), null);
+            break;
+      }
+   }//end add
+
+   private void put(String userId, String sql, Runnable onCommit) throws InterruptedException {
+      int s = shards.shardOf(userId);
+      // lanes s, s + shards, s + 2 * shards, ... are on shard s
+      int l = s + shards.size() * Math.floorMod(userId.trim().hashCode(), lanesPerShard);
+      if (pending[l] == null)
+         pending[l] = new Chunk(s);
+      pending[l].sqls.add(sql);
+      if (onCommit != null)
+         pending[l].onCommit.add(onCommit);
+      if (pending[l].sqls.size() >= chunkSize)
+         submit(l);
+   }//end put
+
+   private void submit(int l) throws InterruptedException {
+      Chunk chunk = pending[l];
+      pending[l] = null;
+      if (chunk == null || chunk.sqls.isEmpty())
+         return;
+      inFlight.acquire();
+      lanes[l].execute(() -> {
+         try {
+            connections.get().get(chunk.shard).executeBatch(chunk.sqls);
+            statements.addAndGet(chunk.sqls.size());
+            committed.incrementAndGet();
+            for (Runnable r : chunk.onCommit)
+               r.run();
+         } catch (Exception e) {
+            failedChunks.incrementAndGet();
+            failedStatements.addAndGet(chunk.sqls.size());
+            System.err.println("Batch chunk failed, rolled back: " + e.getMessage());
+         } finally {
+            inFlight.release();
+         }
+      });
+   }//end submit
+
+   private void reject(long lineNo, String line, String reason) {
+      invalid++;
+      System.err.println(String.format("Invalid command at line %d (%s): %s", lineNo, reason, line));
+   }//end reject
+
+   // for BatchRunnerTest
+   long invalid() {
+      return invalid;
+   }//end invalid
+
+   // for BatchRunnerTest, the statements not yet handed to a lane
+   List<String> pendingStatements() {
+      List<String> sqls = new ArrayList<String>();
+      for (Chunk chunk : pending)
+         if (chunk != null)
+            sqls.addAll(chunk.sqls);
+      return sqls;
+   }//end pendingStatements
+
+   // quotes a value for the String.format based statements of ProfNetwork
+   private static String q(String value) {
+      return value == null ? null : value.replace("'", "''");
+   }//end q
+
+   /**
+    * Parses a flat JSON object of string, number, boolean or null values.
+    *
+    * @return the members, values as strings, null for JSON null
+    * @throws java.lang.IllegalArgumentException when the line is not such
+    * an object
+    */
+   static Map<String, String> parse(String json) {
+      Map<String, String> result = new HashMap<String, String>();
+      int[] pos = { 0 };
+      skip(json, pos);
+      expect(json, pos, '{');
+      while (true) {
+         skip(json, pos);
+         if (pos[0] < json.length() && json.charAt(pos[0]) == '}')
+            return result;
+         if (pos[0] >= json.length() || json.charAt(pos[0]) != '"')
+            throw malformed(pos[0]);
+         String key = string(json, pos);
+         skip(json, pos);
+         expect(json, pos, ':');
+         skip(json, pos);
+         if (pos[0] >= json.length())
+            throw malformed(pos[0]);
+         String value;
+         if (json.charAt(pos[0]) == '"') {
+            value = string(json, pos);
+         } else {
+            int start = pos[0];
+            while (pos[0] < json.length() && ",} \t".indexOf(json.charAt(pos[0])) < 0)
+               pos[0]++;
+            value = json.substring(start, pos[0]);
+            if (value.equals("null"))
+               value = null;
+         }
+         result.put(key, value);
+         skip(json, pos);
+         if (pos[0] < json.length() && json.charAt(pos[0]) == ',')
+            pos[0]++;
+         else if (pos[0] >= json.length() || json.charAt(pos[0]) != '}')
+            throw malformed(pos[0]);
+      }
+   }//end parse
+
+   private static void expect(String json, int[] pos, char c) {
+      if (pos[0] >= json.length() || json.charAt(pos[0]) != c)
+         throw malformed(pos[0]);
+      pos[0]++;
+   }//end expect
+
+   private static IllegalArgumentException malformed(int at) {
+      return new IllegalArgumentException("Malformed JSON at offset " + at);
+   }//end malformed
+
+   private static void skip(String json, int[] pos) {
+      while (pos[0] < json.length() && Character.isWhitespace(json.charAt(pos[0])))
+         pos[0]++;
+   }//end skip
+
+   private static String string(String json, int[] pos) {
+      StringBuilder sb = new StringBuilder();
+      pos[0]++;   // opening quote
+      while (true) {
+         if (pos[0] >= json.length())
+            throw malformed(pos[0]);
+         char c = json.charAt(pos[0]++);
+         if (c == '"')
+            break;
+         if (c != '\\') {
+            sb.append(c);
+            continue;
+         }
+         if (pos[0] >= json.length())
+            throw malformed(pos[0]);
+         char e = json.charAt(pos[0]++);
+         switch (e) {
+            case 'n': sb.append('\n'); break;
+            case 't': sb.append('\t'); break;
+            case 'r': sb.append('\r'); break;
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'u':
+               if (pos[0] + 4 > json.length())
+                  throw malformed(pos[0]);
+               // a bad hex digit throws NumberFormatException, an IllegalArgumentException
+               sb.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+               pos[0] += 4;
+               break;
+            default: sb.append(e);
+         }
+      }
+      return sb.toString();
+   }//end string
+
+}//end BatchRunner
@@ -0,0 +1,62 @@
+/*
+ * Batch mode input checks
+ * =============================
+ *
+ * Feeds BatchRunner lines that miss a field or carry a bad value and
+ * checks that they are rejected before any statement is built. Needs no
+ * database, the commands stay in the pending chunks.
+ *
+ *    javac *.java && java BatchRunnerTest
+ *
+ */
+
+
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchRunnerTest {
+
+   public static void main(String[] args) throws Exception {
+      // placement only, no statement reaches a shard
+      ShardRouter shards = new ShardRouter(Arrays.asList((ProfNetwork) null, (ProfNetwork) null));
+      BatchRunner batch = new BatchRunner(shards, "db0,db1", "5432", "test", 2, 1000);
+      try {
+         String[] rejected = {
+            "{\"op\":\"addWorkExp\",\"user\":\"u1\",\"company\":\"Acme\",\"role\":\"Engineer\",\"startDate\":\"2020-01-01\",\"endDate\":\"2021-01-01\"}",
+            "{\"op\":\"addWorkExp\",\"user\":\"u1\",\"company\":\"Acme\",\"role\":\"Engineer\",\"location\":\"Riverside\",\"endDate\":\"2021-01-01\"}",
+            "{\"op\":\"addWorkExp\",\"user\":\"u1\",\"company\":\"Acme\",\"role\":\"Engineer\",\"location\":\"Riverside\",\"startDate\":\"01/01/2020\",\"endDate\":\"2021-01-01\"}",
+            "{\"op\":\"addEduDet\",\"user\":\"u1\",\"institution\":\"UCR\",\"major\":\"CS\",\"startDate\":\"2016-09-01\",\"endDate\":\"2020-06-01\"}",
+            "{\"op\":\"updateName\",\"user\":\"u1\"}",
+            "{\"op\":\"updateEmail\",\"user\":\"u1\",\"email\":null}",
+            "{\"op\":\"updateDate\",\"user\":\"u1\",\"dateOfBirth\":\"  \"}",
+            "{\"op\":\"newMessage\",\"user\":\"u1\",\"to\":\"u2\"}",
+            "{\"op\":\"sendRequest\",\"user\":\"u1\"}",
+            "{\"op\":\"updateName\",\"name\":\"Jane\"}",
+            "{\"op\":\"dropTable\",\"user\":\"u1\"}",
+            "{\"op\":\"updateName\",\"user\":\"u1\",\"name\":",
+         };
+         for (int i = 0; i < rejected.length; i++)
+            batch.add(rejected[i], i + 1);
+         check(batch.invalid() == rejected.length, "rejected " + batch.invalid() + " of " + rejected.length + " bad lines");
+         check(batch.pendingStatements().isEmpty(), "bad lines built statements " + batch.pendingStatements());
+
+         batch.add("{\"op\":\"addWorkExp\",\"user\":\"u1\",\"company\":\"Acme\",\"role\":\"Engineer\",\"location\":\"Riverside\",\"startDate\":\"2020-01-01\",\"endDate\":\"2021-01-01\"}", 100);
+         batch.add("{\"op\":\"updateName\",\"user\":\"u1\",\"name\":\"Jane Doe\"}", 101);
+         batch.add("{\"op\":\"sendRequest\",\"user\":\"u1\",\"to\":\"u2\"}", 102);
+         List<String> sqls = batch.pendingStatements();
+         check(batch.invalid() == rejected.length, "a valid line was rejected");
+         check(sqls.size() == 5, "expected 5 statements, got " + sqls);
+         for (String sql : sqls)
+            check(!sql.contains("'null'"), "null value in " + sql);
+      } finally {
+         batch.finish();
+      }
+      System.out.println("BatchRunnerTest passed");
+   }//end main
+
+   private static void check(boolean ok, String failure) {
+      if (!ok)
+         throw new AssertionError(failure);
+   }//end check
+
+}//end BatchRunnerTest
@@ -0,0 +1,84 @@
+/*
+ * Database concurrency limiting
+ * =============================
+ *
+ * Bounds the number of statements in flight against a database. Callers
+ * over the limit wait in a fair queue for a while and are shed after that.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class guards the execute* helpers of ProfNetwork. A statement may
+ * run when one of maxConcurrent permits is free; otherwise it queues for at
+ * most maxWaitMillis and is then rejected with an SQLException so the
+ * caller fails fast instead of piling up behind a saturated database.
+ *
+ * ProfNetwork keeps one limiter per database, shared by every connection
+ * to it, so each shard has its own permits.
+ *
+ */
+public class ConcurrencyLimiter {
+
+   private final Semaphore permits;
+   private final long maxWaitMillis;
+   private final LongAdder admitted = new LongAdder();
+   private final LongAdder queued = new LongAdder();
+   private final LongAdder shed = new LongAdder();
+
+   /**
+    * @param maxConcurrent number of statements allowed to run at once
+    * @param maxWaitMillis time a statement may wait for a permit
+    */
+   public ConcurrencyLimiter(int maxConcurrent, long maxWaitMillis) {
+      this.permits = new Semaphore(maxConcurrent, true);
+      this.maxWaitMillis = maxWaitMillis;
+   }//end ConcurrencyLimiter
+
+   /**
+    * Waits for a permit. Every successful call must be paired with release.
+    *
+    * @throws java.sql.SQLException when no permit became free in time
+    */
+   public void acquire() throws SQLException {
+      if (!permits.tryAcquire()) {
+         queued.increment();
+         boolean ok;
+         try {
+            ok = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ok = false;
+         }
+         if (!ok) {
+            shed.increment();
+            throw new SQLException("Server busy, please try again later");
+         }
+      }
+      admitted.increment();
+   }//end acquire
+
+   public void release() {
+      permits.release();
+   }//end release
+
+   /**
+    * @return number of statements rejected because the queue wait ran out
+    */
+   public long shed() {
+      return shed.sum();
+   }//end shed
+
+   /**
+    * @return admitted, queued and shed counts
+    */
+   public String stats() {
+      return String.format("admitted=%d queued=%d shed=%d", admitted.sum(), queued.sum(), shed.sum());
+   }//end stats
+
+}//end ConcurrencyLimiter
@@ -0,0 +1,180 @@
+/*
+ * Streaming export writer
+ * =============================
+ *
+ * Writes query results to CSV or JSON files through a buffered NIO
+ * channel, one row at a time.
+ *
+ */
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class formats rows as CSV or as a JSON array of objects and writes
+ * them through a direct buffer to a file channel. Only one row is held in
+ * memory at a time, so the size of an export does not matter.
+ *
+ */
+public class ExportWriter implements Closeable {
+
+   private static final int BUFFER_SIZE = 1 << 16;
+
+   private final FileChannel channel;
+   private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+   private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+   private final StringBuilder line = new StringBuilder();
+   private final String[] columns;
+   private final boolean json;
+   private long rows = 0;
+   private long bytes = 0;
+
+   /**
+    * Creates the output file and writes the CSV header or the opening
+    * bracket of the JSON array.
+    *
+    * @param file the output file, overwritten if it exists
+    * @param columns the column names of the rows that follow
+    * @param json true for JSON, false for CSV
+    * @throws java.io.IOException when the file can not be created
+    */
+   public ExportWriter(File file, String[] columns, boolean json) throws IOException {
+      this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      this.columns = columns;
+      this.json = json;
+      line.setLength(0);
+      if (json) {
+         line.append("[");
+      } else {
+         for (int i = 0; i < columns.length; i++) {
+            if (i > 0) line.append(',');
+            csv(columns[i]);
+         }
+         line.append('\n');
+      }
+      write(line);
+   }//end ExportWriter
+
+   /**
+    * Appends one row.
+    *
+    * @param values the column values, in the order of the header
+    * @throws java.io.IOException when the write fails
+    */
+   public void writeRow(String[] values) throws IOException {
+      line.setLength(0);
+      if (json) {
+         line.append(rows == 0 ? "\n{" : ",\n{");
+         for (int i = 0; i < columns.length; i++) {
+            if (i > 0) line.append(',');
+            jsonString(columns[i]);
+            line.append(':');
+            if (values[i] == null) line.append("null");
+            else jsonString(values[i].trim());
+         }
+         line.append('}');
+      } else {
+         for (int i = 0; i < columns.length; i++) {
+            if (i > 0) line.append(',');
+            if (values[i] != null) csv(values[i].trim());
+         }
+         line.append('\n');
+      }
+      write(line);
+      rows++;
+   }//end writeRow
+
+   /**
+    * @return the number of rows written so far
+    */
+   public long rows() {
+      return rows;
+   }//end rows
+
+   /**
+    * @return the number of bytes written so far
+    */
+   public long bytes() {
+      return bytes + buf.position();
+   }//end bytes
+
+   /**
+    * Finishes the JSON array, flushes the buffer and closes the file.
+    */
+   public void close() throws IOException {
+      if (json) {
+         line.setLength(0);
+         line.append(rows == 0 ? "]\n" : "\n]\n");
+         write(line);
+      }
+      flush();
+      channel.close();
+   }//end close
+
+   private void csv(String value) {
+      boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                   || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+      if (!quote) {
+         line.append(value);
+         return;
+      }
+      line.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '"') line.append('"');
+         line.append(c);
+      }
+      line.append('"');
+   }//end csv
+
+   private void jsonString(String value) {
+      line.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': line.append("\\\""); break;
+            case '\\': line.append("\\\\"); break;
+            case '\n': line.append("\\n"); break;
+            case '\r': line.append("\\r"); break;
+            case '\t': line.append("\\t"); break;
+            default:
+               if (c < 0x20) line.append(String.format("\\u%04x", (int) c));
+               else line.append(c);
+         }
+      }
+      line.append('"');
+   }//end jsonString
+
+   private void write(CharSequence text) throws IOException {
+      CharBuffer in = CharBuffer.wrap(text);
+      encoder.reset();
+      while (true) {
+         CoderResult result = encoder.encode(in, buf, true);
+         if (result.isOverflow()) {
+            flush();
+         } else {
+            break;
+         }
+      }
+      if (buf.remaining() < 1024)
+         flush();
+   }//end write
+
+   private void flush() throws IOException {
+      buf.flip();
+      while (buf.hasRemaining())
+         bytes += channel.write(buf);
+      buf.clear();
+   }//end flush
+
+}//end ExportWriter
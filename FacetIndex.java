@@ -0,0 +1,489 @@
+/*
+ * Faceted people search
+ * =============================
+ *
+ * In-memory bitmap indexes over the work history (Work_Ex) and education
+ * (Edu_det) of all users, for filtering people by company, role, location,
+ * institution, major and degree with a count per facet value.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class numbers the users densely and keeps one RoaringBitmap of user
+ * numbers per (facet, value), e.g. company=Acme. A search ORs the bitmaps
+ * of the values picked within a facet and ANDs the facets, so a filter over
+ * millions of profiles is a few chunk-wise bitmap operations.
+ *
+ * Facet counts are disjunctive: the counts of a facet are taken over the
+ * matches of the other facets' filters, so picking a value does not hide
+ * the alternatives of the same facet.
+ *
+ * Values are matched case insensitively and without surrounding blanks.
+ * A user matches company=Acme AND degree=MS when any of the
+ * user's jobs is at Acme and any of the user's degrees is an MS.
+ *
+ * The index is built once from every shard (load). The menus call
+ * reindexUser after they change the rows of a user; the changes of other
+ * processes are found in ProfileChange, one row per written Work_Ex or
+ * Edu_det row with the id of the writing transaction (see
+ * migrations/011_profile_change.sql). A search first re-reads, at most every
+ * -Dfacets.refreshMillis (default 5000), the users changed since the
+ * shard's mark and moves the mark like UserDirectory does. Rows older than
+ * -Dfacets.retainSeconds (default 86400) are pruned, an index that did not
+ * refresh for that long loads everything again.
+ *
+ * Every value keeps its number of users, and the values of a facet are
+ * kept ranked by it, so the counts of an unfiltered facet are the head of
+ * the ranking. Filtered counts walk the terms of the matching users, never
+ * every value of the facet.
+ *
+ */
+public class FacetIndex {
+
+   public static final String[] FACETS = { "company", "role", "location", "institution", "major", "degree" };
+   private static final int TOP_VALUES = 10;
+   private static final long REFRESH_MILLIS = Long.getLong("facets.refreshMillis", 5000L);
+   private static final int RETAIN_SECONDS = Integer.getInteger("facets.retainSeconds", 86400);
+
+   public static class Result {
+      public final int total;
+      public final List<String> users;
+      // facet -> value -> number of matching users, largest first
+      public final Map<String, Map<String, Integer>> counts;
+
+      Result(int total, List<String> users, Map<String, Map<String, Integer>> counts) {
+         this.total = total;
+         this.users = users;
+         this.counts = counts;
+      }
+   }//end Result
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+   // users
+   private final Map<String, Integer> ids = new HashMap<String, Integer>();
+   private final List<String> names = new ArrayList<String>();
+   private int[][] userTerms = new int[1 << 10][];
+   private RoaringBitmap indexed = new RoaringBitmap();
+
+   // terms, one per (facet, value)
+   private final List<Map<String, Integer>> termIds = new ArrayList<Map<String, Integer>>();
+   private final List<RoaringBitmap> postings = new ArrayList<RoaringBitmap>();
+   private final List<String> labels = new ArrayList<String>();
+   private int[] termFacets = new int[1 << 10];
+   private int[] termCounts = new int[1 << 10];
+   // facet -> its terms by count, largest first, null while loading
+   private List<TreeSet<Integer>> ranked = null;
+
+   // refresh from ProfileChange, one mark per shard
+   private final ShardRouter source;
+   private final long[] marks;
+   private boolean versioned = true;
+   private volatile long refreshedAt = 0;
+   private final Object refreshing = new Object();
+
+   public FacetIndex() {
+      this(null);
+   }//end FacetIndex
+
+   private FacetIndex(ShardRouter source) {
+      this.source = source;
+      this.marks = new long[source == null ? 0 : source.size()];
+      for (int f = 0; f < FACETS.length; f++)
+         termIds.add(new HashMap<String, Integer>());
+      rank();
+   }//end FacetIndex
+
+   /**
+    * Builds the index from the Work_Ex and Edu_det rows of every shard.
+    *
+    * @return the index
+    * @throws java.lang.Exception when a table can not be read
+    */
+   public static FacetIndex load(ShardRouter shards) throws Exception {
+      FacetIndex index = new FacetIndex(shards);
+      synchronized (index.refreshing) {
+         index.reload(index.xmins());
+      }
+      return index;
+   }//end load
+
+   // forgets everything and copies every shard, changes from xmin on are read again
+   private void reload(long[] xmin) throws Exception {
+      long start = System.nanoTime();
+      lock.writeLock().lock();
+      try {
+         ids.clear();
+         names.clear();
+         userTerms = new int[1 << 10][];
+         indexed = new RoaringBitmap();
+         for (Map<String, Integer> values : termIds)
+            values.clear();
+         postings.clear();
+         labels.clear();
+         ranked = null;
+         for (int s = 0; s < source.size(); s++) {
+            ProfNetwork esql = source.get(s);
+            esql.copyOut("COPY (select userId, company, role, location from Work_Ex) TO STDOUT", sink(0));
+            esql.copyOut("COPY (select userId, instituitionName, major, degree from Edu_det) TO STDOUT", sink(3));
+            marks[s] = xmin[s];
+         }
+         rank();
+      } finally {
+         lock.writeLock().unlock();
+      }
+      refreshedAt = System.currentTimeMillis();
+      System.out.println(String.format("Indexed %d profiles, %d facet values in %d ms",
+         indexed.cardinality(), labels.size(), (System.nanoTime() - start) / 1000000));
+   }//end reload
+
+   // the oldest transaction still running on each shard
+   private long[] xmins() throws SQLException {
+      long[] xmin = new long[source.size()];
+      for (int s = 0; s < xmin.length; s++)
+         xmin[s] = Long.parseLong(source.get(s).executeQueryAndReturnResult(
+            "select txid_snapshot_xmin(txid_current_snapshot())").get(0).get(0).trim());
+      return xmin;
+   }//end xmins
+
+   // re-reads the users changed since the marks, see the class comment
+   private void refresh() throws Exception {
+      synchronized (refreshing) {
+         long[] xmin = xmins();
+         boolean reload = System.currentTimeMillis() - refreshedAt > RETAIN_SECONDS * 1000L;
+         for (int s = 0; s < xmin.length; s++)
+            reload |= xmin[s] < marks[s];   // database recreated
+         if (reload) {
+            reload(xmin);
+            return;
+         }
+         refreshedAt = System.currentTimeMillis();
+         for (int s = 0; s < xmin.length; s++) {
+            ProfNetwork esql = source.get(s);
+            String changed = String.format("select userId from ProfileChange where version >= %d", marks[s]);
+            List<List<String>> users = esql.executeQueryAndReturnResult("select distinct userId from (" + changed + ") c");
+            if (!users.isEmpty()) {
+               List<List<String>> work = esql.executeQueryAndReturnResult(String.format(
+                  "select userId, company, role, location from Work_Ex where userId in (%s)", changed));
+               List<List<String>> edu = esql.executeQueryAndReturnResult(String.format(
+                  "select userId, instituitionName, major, degree from Edu_det where userId in (%s)", changed));
+               lock.writeLock().lock();
+               try {
+                  Map<String, Set<Integer>> terms = new HashMap<String, Set<Integer>>();
+                  for (List<String> row : users)
+                     terms.put(row.get(0).trim(), new LinkedHashSet<Integer>());
+                  collect(terms, work, 0);
+                  collect(terms, edu, 3);
+                  for (Map.Entry<String, Set<Integer>> user : terms.entrySet())
+                     replace(user.getKey(), user.getValue());
+               } finally {
+                  lock.writeLock().unlock();
+               }
+            }
+            marks[s] = xmin[s];
+            esql.executeUpdate(String.format(
+               "delete from ProfileChange where changedAt < now() - interval '%d seconds'", RETAIN_SECONDS));
+         }
+      }
+   }//end refresh
+
+   // terms of rows "userId, value, value, value" into the facets from firstFacet on
+   private void collect(Map<String, Set<Integer>> terms, List<List<String>> rows, int firstFacet) {
+      for (List<String> row : rows) {
+         Set<Integer> user = terms.get(row.get(0).trim());
+         if (user == null)
+            continue;   // changed after the user list was read, the next refresh has it
+         for (int c = 1; c < 4; c++)
+            if (row.get(c) != null)
+               user.add(term(firstFacet + c - 1, row.get(c)));
+      }
+   }//end collect
+
+   private void refreshIfDue() {
+      if (source == null || !versioned || System.currentTimeMillis() - refreshedAt < REFRESH_MILLIS)
+         return;
+      try {
+         refresh();
+      } catch (Exception e) {
+         // the index stays as it is until the next refresh
+         System.err.println("Facet index not refreshed: " + e.getMessage());
+         if (e.getMessage() != null && e.getMessage().contains("profilechange")) {
+            System.err.println("Apply migrations/011_profile_change.sql to see the changes of other sessions");
+            versioned = false;
+         }
+      }
+   }//end refreshIfDue
+
+   // COPY rows "userId \t value \t value \t value" into the facets from firstFacet on
+   private Writer sink(int firstFacet) {
+      return new Writer() {
+         private final StringBuilder line = new StringBuilder();
+
+         public void write(char[] cbuf, int from, int len) {
+            for (int i = from; i < from + len; i++) {
+               if (cbuf[i] == '\n') {
+                  String[] cols = line.toString().split("\t", -1);
+                  if (cols.length == 4) {
+                     int u = user(cols[0].trim());
+                     for (int c = 1; c < 4; c++)
+                        if (!cols[c].equals("\\N"))
+                           addTerm(u, term(firstFacet + c - 1, cols[c]));
+                  }
+                  line.setLength(0);
+               } else {
+                  line.append(cbuf[i]);
+               }
+            }
+         }
+         public void flush() {}
+         public void close() {}
+      };
+   }//end sink
+
+   /**
+    * Reads the work history and education of one user again and replaces
+    * the user's entries in the index.
+    *
+    * @throws java.sql.SQLException when the rows can not be read
+    */
+   public void reindexUser(ShardRouter shards, String userId) throws SQLException {
+      ProfNetwork home = shards.forUser(userId);
+      List<List<String>> work = home.executeQueryAndReturnResult(String.format(
+         "select company, role, location from Work_Ex where userid = '%s'", userId));
+      List<List<String>> edu = home.executeQueryAndReturnResult(String.format(
+         "select instituitionName, major, degree from Edu_det where userid = '%s'", userId));
+
+      lock.writeLock().lock();
+      try {
+         Set<Integer> terms = new LinkedHashSet<Integer>();
+         for (List<String> row : work)
+            for (int c = 0; c < 3; c++)
+               if (row.get(c) != null)
+                  terms.add(term(c, row.get(c)));
+         for (List<String> row : edu)
+            for (int c = 0; c < 3; c++)
+               if (row.get(c) != null)
+                  terms.add(term(3 + c, row.get(c)));
+         replace(userId.trim(), terms);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end reindexUser
+
+   // swaps the terms of a user for the given ones, under the write lock
+   private void replace(String userId, Set<Integer> terms) {
+      terms.remove(-1);
+      int u = user(userId);
+      if (userTerms[u] != null)
+         for (int t : userTerms[u]) {
+            unrank(t);
+            postings.get(t).remove(u);
+            termCounts[t]--;
+            rank(t);
+         }
+      userTerms[u] = null;
+      indexed.remove(u);
+      for (int t : terms)
+         addTerm(u, t);
+   }//end replace
+
+   /**
+    * @param filters facet -> accepted values, facets not given are not filtered
+    * @param limit the most userIds to return
+    * @return the matching users and the counts of every facet
+    */
+   public Result search(Map<String, List<String>> filters, int limit) {
+      refreshIfDue();
+      lock.readLock().lock();
+      try {
+         // one bitmap per filtered facet, null for the others
+         RoaringBitmap[] selected = new RoaringBitmap[FACETS.length];
+         for (int f = 0; f < FACETS.length; f++) {
+            List<String> values = filters.get(FACETS[f]);
+            if (values == null || values.isEmpty())
+               continue;
+            selected[f] = new RoaringBitmap();
+            for (String value : values) {
+               Integer t = termIds.get(f).get(normalize(value));
+               if (t != null)
+                  selected[f] = selected[f].or(postings.get(t));
+            }
+         }
+
+         RoaringBitmap matches = intersect(selected, -1);
+         List<String> users = new ArrayList<String>();
+         for (int u : matches.toArray(limit))
+            users.add(names.get(u));
+
+         Map<String, Map<String, Integer>> counts = new LinkedHashMap<String, Map<String, Integer>>();
+         Map<Integer, int[]> matchCounts = null;   // shared by the facets without a filter
+         for (int f = 0; f < FACETS.length; f++) {
+            RoaringBitmap base = selected[f] == null ? matches : intersect(selected, f);
+            if (base == indexed) {
+               counts.put(FACETS[f], top(f));
+            } else if (selected[f] == null) {
+               if (matchCounts == null)
+                  matchCounts = count(matches);
+               counts.put(FACETS[f], top(f, matchCounts));
+            } else {
+               counts.put(FACETS[f], top(f, count(base)));
+            }
+         }
+         return new Result(matches.cardinality(), users, counts);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end search
+
+   // the values of a facet with the most users
+   private Map<String, Integer> top(int f) {
+      Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+      for (int t : ranked.get(f)) {
+         if (values.size() == TOP_VALUES || termCounts[t] == 0)
+            break;
+         values.put(labels.get(t), termCounts[t]);
+      }
+      return values;
+   }//end top
+
+   // the values of a facet with the most users in counts
+   private Map<String, Integer> top(int f, Map<Integer, int[]> counts) {
+      PriorityQueue<int[]> top = new PriorityQueue<int[]>((a, b) -> Integer.compare(a[1], b[1]));
+      for (Map.Entry<Integer, int[]> tc : counts.entrySet()) {
+         if (termFacets[tc.getKey()] != f)
+            continue;
+         top.add(new int[] { tc.getKey(), tc.getValue()[0] });
+         if (top.size() > TOP_VALUES)
+            top.poll();
+      }
+      int[][] sorted = top.toArray(new int[0][]);
+      Arrays.sort(sorted, (a, b) -> Integer.compare(b[1], a[1]));
+      Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+      for (int[] tc : sorted)
+         values.put(labels.get(tc[0]), tc[1]);
+      return values;
+   }//end top
+
+   // term -> number of users of base that have it
+   private Map<Integer, int[]> count(RoaringBitmap base) {
+      Map<Integer, int[]> counts = new HashMap<Integer, int[]>();
+      for (int u : base.toArray(Integer.MAX_VALUE))
+         for (int t : userTerms[u])
+            counts.computeIfAbsent(t, k -> new int[1])[0]++;
+      return counts;
+   }//end count
+
+   // ranks the terms of every facet by their counts, after a load
+   private void rank() {
+      ranked = new ArrayList<TreeSet<Integer>>();
+      for (int f = 0; f < FACETS.length; f++)
+         ranked.add(new TreeSet<Integer>((a, b) -> termCounts[a] != termCounts[b]
+            ? Integer.compare(termCounts[b], termCounts[a]) : Integer.compare(a, b)));
+      for (int t = 0; t < labels.size(); t++)
+         rank(t);
+   }//end rank
+
+   // a term leaves its ranking before its count changes and comes back after
+   private void unrank(int t) {
+      if (ranked != null)
+         ranked.get(termFacets[t]).remove(t);
+   }//end unrank
+
+   private void rank(int t) {
+      if (ranked != null)
+         ranked.get(termFacets[t]).add(t);
+   }//end rank
+
+   // the AND of the selected facets except one, smallest bitmap first
+   private RoaringBitmap intersect(RoaringBitmap[] selected, int except) {
+      List<RoaringBitmap> parts = new ArrayList<RoaringBitmap>();
+      for (int f = 0; f < selected.length; f++)
+         if (f != except && selected[f] != null)
+            parts.add(selected[f]);
+      if (parts.isEmpty())
+         return indexed;
+      parts.sort((a, b) -> Integer.compare(a.cardinality(), b.cardinality()));
+      RoaringBitmap result = parts.get(0);
+      for (int i = 1; i < parts.size() && !result.isEmpty(); i++)
+         result = result.and(parts.get(i));
+      return result;
+   }//end intersect
+
+   private int user(String userId) {
+      Integer u = ids.get(userId);
+      if (u == null) {
+         u = names.size();
+         ids.put(userId, u);
+         names.add(userId);
+         if (u == userTerms.length)
+            userTerms = Arrays.copyOf(userTerms, u * 2);
+      }
+      return u;
+   }//end user
+
+   // term id of a facet value, -1 for a blank value
+   private int term(int facet, String value) {
+      String key = normalize(value);
+      if (key.isEmpty())
+         return -1;
+      Integer t = termIds.get(facet).get(key);
+      if (t == null) {
+         t = postings.size();
+         termIds.get(facet).put(key, t);
+         postings.add(new RoaringBitmap());
+         labels.add(value.trim());
+         if (t == termCounts.length) {
+            termCounts = Arrays.copyOf(termCounts, t * 2);
+            termFacets = Arrays.copyOf(termFacets, t * 2);
+         }
+         termCounts[t] = 0;
+         termFacets[t] = facet;
+         rank(t);
+      }
+      return t;
+   }//end term
+
+   private void addTerm(int u, int t) {
+      if (t < 0)
+         return;
+      int[] terms = userTerms[u];
+      if (terms == null) {
+         userTerms[u] = new int[] { t };
+      } else {
+         for (int x : terms)
+            if (x == t)
+               return;
+         terms = Arrays.copyOf(terms, terms.length + 1);
+         terms[terms.length - 1] = t;
+         userTerms[u] = terms;
+      }
+      unrank(t);
+      postings.get(t).add(u);
+      termCounts[t]++;
+      rank(t);
+      indexed.add(u);
+   }//end addTerm
+
+   private static String normalize(String value) {
+      return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+   }//end normalize
+
+}//end FacetIndex
@@ -0,0 +1,111 @@
+/*
+ * Latency histogram
+ * =============================
+ *
+ * Records operation latencies from many threads and answers percentile
+ * queries, for the replay driver and the migration timings.
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets of microseconds: 32
+ * buckets per power of two, so a percentile is off by at most ~3% and the
+ * whole range up to hours fits in 2048 counters. Recording is one atomic
+ * increment and never allocates, so it does not disturb what it measures.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB = 1 << SUB_BITS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * @param nanos the latency of one operation
+    */
+   public void record(long nanos) {
+      long micros = Math.max(nanos / 1000, 0);
+      counts.incrementAndGet(index(micros));
+      count.incrementAndGet();
+      long m;
+      while (micros > (m = max.get()) && !max.compareAndSet(m, micros))
+         ;
+   }//end record
+
+   /**
+    * Adds the counts of another histogram to this one.
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < counts.length(); i++) {
+         long c = other.counts.get(i);
+         if (c != 0)
+            counts.addAndGet(i, c);
+      }
+      count.addAndGet(other.count.get());
+      long m, o = other.max.get();
+      while (o > (m = max.get()) && !max.compareAndSet(m, o))
+         ;
+   }//end add
+
+   public long count() {
+      return count.get();
+   }//end count
+
+   /**
+    * @return the largest latency recorded, in microseconds
+    */
+   public long max() {
+      return max.get();
+   }//end max
+
+   /**
+    * @param p the percentile as a fraction, e.g. 0.99
+    * @return the latency in microseconds below which p of the operations
+    * completed, 0 when nothing was recorded
+    */
+   public long percentile(double p) {
+      long n = count.get();
+      if (n == 0)
+         return 0;
+      long target = Math.max((long) Math.ceil(p * n), 1);
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+         seen += counts.get(i);
+         if (seen >= target)
+            return Math.min(lowest(i + 1) - 1, max.get());
+      }
+      return max.get();
+   }//end percentile
+
+   /**
+    * @return "p50 p95 p99 p999 max" in milliseconds
+    */
+   public String summary() {
+      return String.format("p50=%.2fms p95=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+         percentile(0.50) / 1000.0, percentile(0.95) / 1000.0, percentile(0.99) / 1000.0,
+         percentile(0.999) / 1000.0, max() / 1000.0);
+   }//end summary
+
+   // values below SUB get a bucket each, above that SUB buckets per power of two
+   private static int index(long v) {
+      if (v < SUB)
+         return (int) v;
+      int e = 63 - Long.numberOfLeadingZeros(v);
+      return (e - SUB_BITS + 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+   }//end index
+
+   private static long lowest(int i) {
+      if (i < SUB)
+         return i;
+      int g = i / SUB;
+      return (long) (SUB + i % SUB) << (g - 1);
+   }//end lowest
+
+}//end LatencyHistogram
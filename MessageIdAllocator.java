@@ -0,0 +1,79 @@
+/*
+ * Client side message id allocation
+ * =============================
+ *
+ * Hands out Message.msgId values from blocks reserved in msgid_seq, so
+ * inserts can supply the id themselves (hi/lo allocation).
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class reserves a block of ids with a single nextval and serves the
+ * ids of the block from an AtomicLong, so concurrent callers take ids
+ * without a lock or a round trip. Only the thread that finds the block
+ * exhausted goes back to the database.
+ *
+ * The block size is the INCREMENT BY of the sequence (see trigger.sql.txt):
+ * nextval returning v reserves [v, v + increment) for this process.
+ *
+ */
+public class MessageIdAllocator {
+
+   private static final class Block {
+      final AtomicLong next;
+      final long end;
+
+      Block(long start, long end) {
+         this.next = new AtomicLong(start);
+         this.end = end;
+      }
+   }//end Block
+
+   private final ProfNetwork esql;
+   private final String sequence;
+   private long blockSize = 0;
+   private volatile Block block = new Block(0, 0);
+
+   /**
+    * @param esql the database holding the sequence
+    * @param sequence name of the sequence, e.g. msgid_seq
+    */
+   public MessageIdAllocator(ProfNetwork esql, String sequence) {
+      this.esql = esql;
+      this.sequence = sequence;
+   }//end MessageIdAllocator
+
+   /**
+    * @return a message id no other caller or process will receive
+    * @throws java.sql.SQLException when a new block can not be reserved
+    */
+   public long next() throws SQLException {
+      while (true) {
+         Block b = block;
+         long id = b.next.getAndIncrement();
+         if (id < b.end)
+            return id;
+         refill(b);
+      }
+   }//end next
+
+   // only the first thread to see the exhausted block reserves a new one
+   private synchronized void refill(Block exhausted) throws SQLException {
+      if (block != exhausted)
+         return;
+      if (blockSize == 0) {
+         List<List<String>> inc = esql.executeQueryAndReturnResult(String.format(
+            "select increment_by from pg_sequences where sequencename = '%s'", sequence.toLowerCase()));
+         blockSize = inc.isEmpty() ? 1 : Long.parseLong(inc.get(0).get(0).trim());
+      }
+      List<List<String>> next = esql.executeQueryAndReturnResult(String.format("select nextval('%s')", sequence));
+      long start = Long.parseLong(next.get(0).get(0).trim());
+      block = new Block(start, start + blockSize);
+   }//end refill
+
+}//end MessageIdAllocator
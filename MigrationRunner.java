@@ -0,0 +1,369 @@
+/*
+ * Schema migrations
+ * =============================
+ *
+ * Applies the numbered SQL files of the migrations directory to every
+ * shard, once each, and times the queries of the application before and
+ * after.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs the files named NNN_description.sql in version order.
+ * The versions a shard has applied are kept in its schema_version table.
+ *
+ * A migration that uses CREATE/DROP INDEX ... CONCURRENTLY cannot run in a
+ * transaction block, its statements run one by one in autocommit mode and
+ * must be idempotent (IF [NOT] EXISTS), so a run that stopped halfway can
+ * simply be repeated. The index left INVALID by a failed concurrent build
+ * of the migration is dropped before the error is reported. Concurrent index builds only take
+ * a SHARE UPDATE EXCLUSIVE lock, reads and writes carry on meanwhile.
+ *
+ * Any other migration runs as one transaction with a lock_timeout
+ * (-Dmigrate.lockTimeout, default 5s), so DDL that waits behind a long
+ * transaction gives up instead of queueing every other statement behind
+ * its lock.
+ *
+ * Runs are serialized per shard by an advisory lock. Before and after a
+ * run the lookups and joins of the application are timed for the same
+ * sample of users, and the table and index sizes are taken, summed over
+ * the shards. They are printed side by side and kept in schema_timing and
+ * schema_size on shard 0. "--measure" prints the same figures for the
+ * schema as it is, without migrating.
+ *
+ */
+public class MigrationRunner {
+
+   private static final Pattern FILE = Pattern.compile("(\\d+)_(.+)\\.sql");
+   private static final Pattern CONCURRENT = Pattern.compile("(?i)\\bCONCURRENTLY\\b");
+   private static final Pattern CREATE_INDEX = Pattern.compile(
+      "(?is)^\\s*CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+CONCURRENTLY\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\"[^\"]+\"|\\w+)");
+   private static final long LOCK_KEY = 0x5c4e3a;   // pg_advisory_lock key of the runner
+   private static final int SAMPLE_USERS = 20;
+   private static final int REPEAT = 5;
+   private static final String[] TABLES = { "usr", "work_ex", "edu_det", "message", "connection" };
+
+   private static class Migration {
+      final int version;
+      final String description;
+      final List<String> statements;
+      final boolean concurrent;
+
+      Migration(int version, String description, List<String> statements) {
+         this.version = version;
+         this.description = description;
+         this.statements = statements;
+         boolean c = false;
+         for (String sql : statements)
+            c |= CONCURRENT.matcher(sql).find();
+         this.concurrent = c;
+      }
+   }//end Migration
+
+   /**
+    * Applies the pending migrations of a directory to every shard.
+    *
+    * @param dir the migrations directory, e.g. "migrations"
+    * @throws java.lang.Exception when a migration fails, later migrations
+    * are not applied
+    */
+   public static void run(ShardRouter shards, String dir) throws Exception {
+      List<Migration> migrations = load(new File(dir));
+      if (migrations.isEmpty()) {
+         System.out.println("No migrations in " + dir);
+         return;
+      }
+      List<Set<Integer>> applied = new ArrayList<Set<Integer>>();
+      boolean pending = false;
+      for (int s = 0; s < shards.size(); s++) {
+         Set<Integer> done = applied(shards.get(s));
+         applied.add(done);
+         for (Migration m : migrations)
+            pending |= !done.contains(m.version);
+      }
+      int target = migrations.get(migrations.size() - 1).version;
+      if (!pending) {
+         System.out.println("Schema is up to date at version " + target);
+         return;
+      }
+
+      List<List<String>> sample = sample(shards);
+      Map<String, LatencyHistogram> before = measure(shards, sample);
+      Map<String, long[]> sizesBefore = sizes(shards);
+      for (int s = 0; s < shards.size(); s++)
+         apply(shards.get(s), s, migrations);
+      Map<String, LatencyHistogram> after = measure(shards, sample);
+      Map<String, long[]> sizesAfter = sizes(shards);
+
+      System.out.println(String.format("\n%-12s %12s %12s %12s %12s", "query", "before p50", "before p95", "after p50", "after p95"));
+      for (String query : before.keySet())
+         System.out.println(String.format("%-12s %10.2fms %10.2fms %10.2fms %10.2fms", query,
+            before.get(query).percentile(0.50) / 1000.0, before.get(query).percentile(0.95) / 1000.0,
+            after.get(query).percentile(0.50) / 1000.0, after.get(query).percentile(0.95) / 1000.0));
+      System.out.println(String.format("\n%-12s %12s %12s %12s %12s", "table", "before data", "before index", "after data", "after index"));
+      for (String table : sizesBefore.keySet())
+         System.out.println(String.format("%-12s %10.1fMB %10.1fMB %10.1fMB %10.1fMB", table,
+            sizesBefore.get(table)[0] / 1048576.0, sizesBefore.get(table)[1] / 1048576.0,
+            sizesAfter.get(table)[0] / 1048576.0, sizesAfter.get(table)[1] / 1048576.0));
+      record(shards.get(0), target, "before", before, sizesBefore);
+      record(shards.get(0), target, "after", after, sizesAfter);
+   }//end run
+
+   /**
+    * Prints the query latencies and the table and index sizes of the
+    * schema as it is.
+    *
+    * @throws java.sql.SQLException when a query fails
+    */
+   public static void measure(ShardRouter shards) throws SQLException {
+      Map<String, LatencyHistogram> latency = measure(shards, sample(shards));
+      System.out.println(String.format("%-12s %s", "query", "latency"));
+      for (Map.Entry<String, LatencyHistogram> q : latency.entrySet())
+         System.out.println(String.format("%-12s %s", q.getKey(), q.getValue().summary()));
+      System.out.println(String.format("\n%-12s %12s %12s", "table", "data", "index"));
+      for (Map.Entry<String, long[]> t : sizes(shards).entrySet())
+         System.out.println(String.format("%-12s %10.1fMB %10.1fMB", t.getKey(), t.getValue()[0] / 1048576.0, t.getValue()[1] / 1048576.0));
+   }//end measure
+
+   private static List<Migration> load(File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if (files == null)
+         throw new IOException("No migrations directory " + dir);
+      List<Migration> migrations = new ArrayList<Migration>();
+      Set<Integer> versions = new HashSet<Integer>();
+      for (File f : files) {
+         Matcher m = FILE.matcher(f.getName());
+         if (!m.matches())
+            continue;
+         int version = Integer.parseInt(m.group(1));
+         if (!versions.add(version))
+            throw new IOException("Duplicate migration version " + version);
+         String sql = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+         migrations.add(new Migration(version, m.group(2).replace('_', ' '), split(sql)));
+      }
+      migrations.sort((a, b) -> Integer.compare(a.version, b.version));
+      return migrations;
+   }//end load
+
+   private static Set<Integer> applied(ProfNetwork esql) throws SQLException {
+      esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version(" +
+                         "version integer NOT NULL, description varchar(200) NOT NULL, " +
+                         "appliedAt timestamp default current_timestamp, millis bigint NOT NULL, " +
+                         "PRIMARY KEY(version))");
+      Set<Integer> done = new HashSet<Integer>();
+      for (List<String> row : esql.executeQueryAndReturnResult("select version from schema_version"))
+         done.add(Integer.parseInt(row.get(0).trim()));
+      return done;
+   }//end applied
+
+   private static void apply(ProfNetwork esql, int shard, List<Migration> migrations) throws SQLException {
+      esql.executeQueryAndReturnResult(String.format("select pg_advisory_lock(%d)", LOCK_KEY));
+      try {
+         // read again under the lock, another runner may have been first
+         Set<Integer> done = applied(esql);
+         for (Migration m : migrations) {
+            if (done.contains(m.version))
+               continue;
+            long start = System.nanoTime();
+            String record = "insert into schema_version (version, description, millis) values (%d, '%s', %d)";
+            if (m.concurrent) {
+               for (String sql : m.statements) {
+                  try {
+                     esql.executeUpdate(sql);
+                  } catch (SQLException e) {
+                     dropInvalidIndex(esql, sql);
+                     throw new SQLException(String.format("Migration %d failed on shard %d: %s", m.version, shard, e.getMessage()), e);
+                  }
+               }
+               esql.executeUpdate(String.format(record, m.version, m.description.replace("'", "''"), (System.nanoTime() - start) / 1000000));
+            } else {
+               List<String> batch = new ArrayList<String>();
+               batch.add(String.format("SET LOCAL lock_timeout = '%s'", System.getProperty("migrate.lockTimeout", "5s")));
+               batch.addAll(m.statements);
+               // the version row commits with the statements, or neither does
+               batch.add(String.format(record, m.version, m.description.replace("'", "''"), 0));
+               try {
+                  esql.executeBatch(batch);
+               } catch (SQLException e) {
+                  throw new SQLException(String.format("Migration %d failed on shard %d, rolled back: %s", m.version, shard, e.getMessage()), e);
+               }
+               esql.executeUpdate(String.format("update schema_version set millis = %d where version = %d",
+                                                (System.nanoTime() - start) / 1000000, m.version));
+            }
+            System.out.println(String.format("Shard %d: applied %03d %s in %d ms%s", shard, m.version, m.description,
+                                             (System.nanoTime() - start) / 1000000, m.concurrent ? " (concurrently)" : ""));
+         }
+      } finally {
+         esql.executeQueryAndReturnResult(String.format("select pg_advisory_unlock(%d)", LOCK_KEY));
+      }
+   }//end apply
+
+   // only the index the failed statement was building, other invalid
+   // indexes may be concurrent builds of other sessions still in progress
+   private static void dropInvalidIndex(ProfNetwork esql, String sql) throws SQLException {
+      Matcher m = CREATE_INDEX.matcher(sql);
+      if (!m.find())
+         return;
+      String name = m.group(1);
+      name = name.startsWith("\"") ? name.substring(1, name.length() - 1) : name.toLowerCase();
+      List<List<String>> invalid = esql.executeQueryAndReturnResult(String.format(
+         "select c.relname from pg_index i join pg_class c on c.oid = i.indexrelid where not i.indisvalid and c.relname = '%s'",
+         name.replace("'", "''")));
+      for (List<String> row : invalid) {
+         System.err.println("Dropping invalid index " + row.get(0).trim());
+         esql.executeUpdate(String.format("DROP INDEX CONCURRENTLY IF EXISTS \"%s\"", row.get(0).trim()));
+      }
+   }//end dropInvalidIndex
+
+   // random users with one of their companies, the same sample is timed before and after
+   private static List<List<String>> sample(ShardRouter shards) throws SQLException {
+      return shards.queryAll(String.format(
+         "select U.userid, (select W.company from Work_Ex W where W.userid = U.userid limit 1) from USR U order by random() limit %d", SAMPLE_USERS));
+   }//end sample
+
+   /*
+    * Times the lookups and joins of the menus for a sample of users on
+    * their shards. The joins compare USR.userId with the userId columns of
+    * the other tables
+    * @return latency per query name
+    **/
+   static Map<String, LatencyHistogram> measure(ShardRouter shards, List<List<String>> sample) throws SQLException {
+      Map<String, Function<List<String>, String>> queries = new LinkedHashMap<String, Function<List<String>, String>>();
+      queries.put("friends", u -> ProfNetwork.friendsQuery(u.get(0)));
+      queries.put("requests", u -> String.format("select C.connectionid, C.status from Connection C where C.userid = '%s' AND status ='Request'", u.get(0)));
+      queries.put("reverse", u -> String.format("select userid from Connection where connectionid = '%s'", u.get(0)));
+      queries.put("inbox", u -> ProfNetwork.receivedMessagesQuery(u.get(0)));
+      queries.put("workex", u -> ProfNetwork.workExQuery(u.get(0)));
+      queries.put("company", u -> String.format("select userid from Work_Ex where company = '%s'",
+                                                u.get(1) == null ? "" : u.get(1).trim().replace("'", "''")));
+      queries.put("profile", u -> String.format("select U.name, W.company, W.role, E.major, E.degree from USR U " +
+                                                "join Work_Ex W on W.userid = U.userid join Edu_det E on E.userid = U.userid where U.userid = '%s'", u.get(0)));
+      queries.put("friendnames", u -> String.format("select C.connectionid, U.name from Connection C join USR U on U.userid = C.connectionid " +
+                                                    "where C.userid = '%s' and C.status = 'Accept'", u.get(0)));
+      queries.put("inboxnames", u -> String.format("select M.msgid, U.name from Message M join USR U on U.userid = M.senderid " +
+                                                   "where M.receiverid = '%s'", u.get(0)));
+      Map<String, LatencyHistogram> result = new LinkedHashMap<String, LatencyHistogram>();
+      for (Map.Entry<String, Function<List<String>, String>> q : queries.entrySet()) {
+         LatencyHistogram h = new LatencyHistogram();
+         for (List<String> u : sample) {
+            ProfNetwork home = shards.forUser(u.get(0));
+            String sql = q.getValue().apply(Arrays.asList(u.get(0).trim(), u.get(1)));
+            for (int r = 0; r < REPEAT; r++) {
+               long start = System.nanoTime();
+               home.executeQueryAndReturnResult(sql);
+               h.record(System.nanoTime() - start);
+            }
+         }
+         result.put(q.getKey(), h);
+      }
+      return result;
+   }//end measure
+
+   /*
+    * Table and index bytes of the application tables, summed over the shards
+    * @return table -> { table bytes, index bytes }
+    **/
+   static Map<String, long[]> sizes(ShardRouter shards) throws SQLException {
+      StringBuilder names = new StringBuilder();
+      for (String t : TABLES)
+         names.append(names.length() == 0 ? "" : ",").append('\'').append(t).append('\'');
+      Map<String, long[]> result = new LinkedHashMap<String, long[]>();
+      for (String t : TABLES)
+         result.put(t, new long[2]);
+      for (List<String> row : shards.queryAll(String.format(
+            "select relname, pg_table_size(oid), pg_indexes_size(oid) from pg_class where relkind = 'r' and relname in (%s)", names))) {
+         long[] size = result.get(row.get(0).trim());
+         size[0] += Long.parseLong(row.get(1).trim());
+         size[1] += Long.parseLong(row.get(2).trim());
+      }
+      return result;
+   }//end sizes
+
+   private static void record(ProfNetwork esql, int version, String phase, Map<String, LatencyHistogram> timings,
+                              Map<String, long[]> sizes) throws SQLException {
+      esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_timing(" +
+                         "version integer NOT NULL, query varchar(30) NOT NULL, phase varchar(10) NOT NULL, " +
+                         "p50 float NOT NULL, p95 float NOT NULL, p99 float NOT NULL, " +
+                         "recordedAt timestamp default current_timestamp)");
+      for (Map.Entry<String, LatencyHistogram> t : timings.entrySet())
+         esql.executeUpdate(String.format(
+            "insert into schema_timing (version, query, phase, p50, p95, p99) values (%d, '%s', '%s', %.3f, %.3f, %.3f)",
+            version, t.getKey(), phase, t.getValue().percentile(0.50) / 1000.0,
+            t.getValue().percentile(0.95) / 1000.0, t.getValue().percentile(0.99) / 1000.0));
+      esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_size(" +
+                         "version integer NOT NULL, relation varchar(30) NOT NULL, phase varchar(10) NOT NULL, " +
+                         "tableBytes bigint NOT NULL, indexBytes bigint NOT NULL, " +
+                         "recordedAt timestamp default current_timestamp)");
+      for (Map.Entry<String, long[]> t : sizes.entrySet())
+         esql.executeUpdate(String.format(
+            "insert into schema_size (version, relation, phase, tableBytes, indexBytes) values (%d, '%s', '%s', %d, %d)",
+            version, t.getKey(), phase, t.getValue()[0], t.getValue()[1]));
+   }//end record
+
+   /*
+    * Splits a script into statements at the semicolons that are not inside
+    * quotes, dollar quotes or comments
+    **/
+   static List<String> split(String script) {
+      List<String> statements = new ArrayList<String>();
+      StringBuilder sb = new StringBuilder();
+      int i = 0, n = script.length();
+      while (i < n) {
+         char c = script.charAt(i);
+         if (c == '-' && i + 1 < n && script.charAt(i + 1) == '-') {
+            while (i < n && script.charAt(i) != '\n')
+               i++;
+            continue;
+         }
+         if (c == '\'' || c == '"') {
+            int end = script.indexOf(c, i + 1);
+            end = end < 0 ? n : end + 1;
+            sb.append(script, i, end);
+            i = end;
+            continue;
+         }
+         if (c == '$') {
+            int tagEnd = script.indexOf('$', i + 1);
+            if (tagEnd > 0 && script.substring(i + 1, tagEnd).matches("\\w*")) {
+               String tag = script.substring(i, tagEnd + 1);
+               int end = script.indexOf(tag, tagEnd + 1);
+               end = end < 0 ? n : end + tag.length();
+               sb.append(script, i, end);
+               i = end;
+               continue;
+            }
+         }
+         if (c == ';') {
+            if (!sb.toString().trim().isEmpty())
+               statements.add(sb.toString().trim());
+            sb.setLength(0);
+         } else {
+            sb.append(c);
+         }
+         i++;
+      }
+      if (!sb.toString().trim().isEmpty())
+         statements.add(sb.toString().trim());
+      return statements;
+   }//end split
+
+}//end MigrationRunner
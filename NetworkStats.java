@@ -0,0 +1,423 @@
+/*
+ * Network statistics batch job
+ * =============================
+ *
+ * Snapshots the accepted Connection edges, computes per user network
+ * statistics on all cores with fork/join and writes them back with COPY.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+/**
+ * This class computes, for every user with accepted connections:
+ *    degree        : number of friends
+ *    componentId   : smallest userId of the user's connected component
+ *    twoHopReach   : number of distinct users within two hops
+ * and the TOP_PAIRS friend pairs with the most mutual friends.
+ *
+ * Results go to UserNetworkStats and MutualFriends (create_table.sql.txt)
+ * on the shard of the user (of userA for a pair). A full run replaces both
+ * tables. An incremental run is driven by the
+ * NetworkStats_dirty marks written by the Connection trigger and only
+ * rewrites the users of the components that contain a changed user.
+ *
+ */
+public class NetworkStats {
+
+   private static final int TOP_PAIRS = 1000;
+   private static final int COPY_CHUNK = 50000;
+   private static final int LEAF = 512;
+
+   // edge snapshot, users are numbered in the order they are seen
+   private final Map<String, Integer> ids = new HashMap<String, Integer>();
+   private final List<String> names = new ArrayList<String>();
+   private int[] src = new int[1 << 16];
+   private int[] dst = new int[1 << 16];
+   private int edges = 0;
+
+   // adjacency in compressed sparse row form, sorted and without duplicates
+   private int n;
+   private int[] off;
+   private int[] adj;
+   private int[] degree;
+
+   private String[] component;
+   private int[] reach;
+   private boolean[] affected;
+   private final List<long[]> topPairs = new ArrayList<long[]>();
+
+   /**
+    * Runs the job.
+    *
+    * @param shards the databases to read the edges from and write the results to
+    * @param incremental true to only refresh users touched since the last run
+    * @throws java.lang.Exception when reading or writing fails
+    */
+   public static void run(ShardRouter shards, boolean incremental) throws Exception {
+      long start = System.nanoTime();
+
+      // changes marked after this point are left for the next run
+      long[] mark = new long[shards.size()];
+      boolean changed = false;
+      for (int s = 0; s < shards.size(); s++) {
+         List<List<String>> rows = shards.get(s).executeQueryAndReturnResult("select coalesce(max(seq), 0) from NetworkStats_dirty");
+         mark[s] = Long.parseLong(rows.get(0).get(0).trim());
+         changed |= mark[s] > 0;
+      }
+      Set<String> dirty = null;
+      if (incremental) {
+         if (!changed) {
+            System.out.println("Network statistics are up to date");
+            return;
+         }
+         dirty = new HashSet<String>();
+         for (int s = 0; s < shards.size(); s++) {
+            List<List<String>> rows = shards.get(s).executeQueryAndReturnResult("select distinct userId from NetworkStats_dirty where seq <= " + mark[s]);
+            for (List<String> row : rows)
+               dirty.add(row.get(0).trim());
+         }
+      }
+
+      NetworkStats job = new NetworkStats();
+      for (int s = 0; s < shards.size(); s++)
+         job.snapshot(shards.get(s));
+      long loaded = System.nanoTime();
+      job.compute(dirty);
+      long computed = System.nanoTime();
+      int written = 0;
+      for (int s = 0; s < shards.size(); s++)
+         written += job.write(shards, s, dirty, mark[s]);
+      long done = System.nanoTime();
+
+      System.out.println(String.format(
+         "Network statistics: %d users, %d edges, %d rows written (%s), load %.2f s, compute %.2f s on %d cores, write %.2f s",
+         job.n, job.edges / 2, written, incremental ? "incremental" : "full",
+         (loaded - start) / 1e9, (computed - loaded) / 1e9,
+         ForkJoinPool.commonPool().getParallelism(), (done - computed) / 1e9));
+   }//end run
+
+   // streams the accepted edges with COPY, one line at a time
+   private void snapshot(ProfNetwork esql) throws Exception {
+      Writer sink = new Writer() {
+         private final StringBuilder line = new StringBuilder();
+
+         public void write(char[] cbuf, int from, int len) {
+            for (int i = from; i < from + len; i++) {
+               if (cbuf[i] == '\n') {
+                  int tab = line.indexOf("\t");
+                  if (tab > 0)
+                     addEdge(line.substring(0, tab).trim(), line.substring(tab + 1).trim());
+                  line.setLength(0);
+               } else {
+                  line.append(cbuf[i]);
+               }
+            }
+         }
+         public void flush() {}
+         public void close() {}
+      };
+      esql.copyOut("COPY (select userId, connectionId from Connection where status = 'Accept') TO STDOUT", sink);
+   }//end snapshot
+
+   private void addEdge(String a, String b) {
+      int u = id(a);
+      int v = id(b);
+      if (u == v)
+         return;
+      if (edges + 2 > src.length) {
+         src = Arrays.copyOf(src, src.length * 2);
+         dst = Arrays.copyOf(dst, dst.length * 2);
+      }
+      // Connection normally holds both directions, duplicates are removed later
+      src[edges] = u; dst[edges++] = v;
+      src[edges] = v; dst[edges++] = u;
+   }//end addEdge
+
+   private int id(String userId) {
+      Integer id = ids.get(userId);
+      if (id == null) {
+         id = names.size();
+         ids.put(userId, id);
+         names.add(userId);
+      }
+      return id;
+   }//end id
+
+   private void compute(Set<String> dirty) {
+      buildAdjacency();
+      components();
+      markAffected(dirty);
+      twoHopReach();
+      mutualFriends();
+   }//end compute
+
+   private void buildAdjacency() {
+      n = names.size();
+      off = new int[n + 1];
+      for (int e = 0; e < edges; e++)
+         off[src[e] + 1]++;
+      for (int u = 0; u < n; u++)
+         off[u + 1] += off[u];
+      adj = new int[edges];
+      int[] fill = Arrays.copyOf(off, n);
+      for (int e = 0; e < edges; e++)
+         adj[fill[src[e]]++] = dst[e];
+      src = null;
+      dst = null;
+
+      degree = new int[n];
+      parallelFor(n, u -> {
+         Arrays.sort(adj, off[u], off[u + 1]);
+         int len = 0;
+         for (int i = off[u]; i < off[u + 1]; i++)
+            if (len == 0 || adj[off[u] + len - 1] != adj[i])
+               adj[off[u] + len++] = adj[i];
+         degree[u] = len;
+      });
+   }//end buildAdjacency
+
+   // lock free union-find, the root with the larger index is linked below the smaller
+   private void components() {
+      AtomicIntegerArray parent = new AtomicIntegerArray(n);
+      for (int u = 0; u < n; u++)
+         parent.set(u, u);
+      parallelFor(n, u -> {
+         for (int i = off[u]; i < off[u] + degree[u]; i++) {
+            int v = adj[i];
+            if (v < u)
+               continue;
+            while (true) {
+               int ru = find(parent, u);
+               int rv = find(parent, v);
+               if (ru == rv)
+                  break;
+               int lo = Math.min(ru, rv), hi = Math.max(ru, rv);
+               if (parent.compareAndSet(hi, hi, lo))
+                  break;
+            }
+         }
+      });
+
+      // label each component with its smallest userId so ids are stable across runs
+      int[] root = new int[n];
+      parallelFor(n, u -> root[u] = find(parent, u));
+      String[] label = new String[n];
+      for (int u = 0; u < n; u++)
+         if (label[root[u]] == null || names.get(u).compareTo(label[root[u]]) < 0)
+            label[root[u]] = names.get(u);
+      component = new String[n];
+      parallelFor(n, u -> component[u] = label[root[u]]);
+   }//end components
+
+   private static int find(AtomicIntegerArray parent, int u) {
+      while (true) {
+         int p = parent.get(u);
+         if (p == u)
+            return u;
+         int gp = parent.get(p);
+         parent.compareAndSet(u, p, gp);   // path halving
+         u = gp;
+      }
+   }//end find
+
+   // an incremental run rewrites every user in a component holding a changed user
+   private void markAffected(Set<String> dirty) {
+      affected = new boolean[n];
+      if (dirty == null) {
+         Arrays.fill(affected, true);
+         return;
+      }
+      Set<String> touched = new HashSet<String>();
+      for (String userId : dirty) {
+         Integer u = ids.get(userId);
+         if (u != null)
+            touched.add(component[u]);
+      }
+      for (int u = 0; u < n; u++)
+         affected[u] = touched.contains(component[u]);
+   }//end markAffected
+
+   private void twoHopReach() {
+      reach = new int[n];
+      // stamp u + 1 marks users already counted for u, so the array never needs clearing
+      ThreadLocal<int[]> marks = ThreadLocal.withInitial(() -> new int[n]);
+      parallelFor(n, u -> {
+         if (!affected[u])
+            return;
+         int[] mark = marks.get();
+         int stamp = u + 1;
+         int count = 0;
+         mark[u] = stamp;
+         for (int i = off[u]; i < off[u] + degree[u]; i++) {
+            int v = adj[i];
+            if (mark[v] != stamp) { mark[v] = stamp; count++; }
+            for (int j = off[v]; j < off[v] + degree[v]; j++) {
+               int w = adj[j];
+               if (mark[w] != stamp) { mark[w] = stamp; count++; }
+            }
+         }
+         reach[u] = count;
+      });
+   }//end twoHopReach
+
+   private void mutualFriends() {
+      ConcurrentLinkedQueue<PriorityQueue<long[]>> heaps = new ConcurrentLinkedQueue<PriorityQueue<long[]>>();
+      ThreadLocal<PriorityQueue<long[]>> local = ThreadLocal.withInitial(() -> {
+         PriorityQueue<long[]> heap = new PriorityQueue<long[]>((a, b) -> Long.compare(a[2], b[2]));
+         heaps.add(heap);
+         return heap;
+      });
+      parallelFor(n, u -> {
+         PriorityQueue<long[]> heap = local.get();
+         for (int i = off[u]; i < off[u] + degree[u]; i++) {
+            int v = adj[i];
+            if (v <= u)
+               continue;
+            int common = intersect(u, v);
+            if (common == 0)
+               continue;
+            if (heap.size() < TOP_PAIRS) {
+               heap.add(new long[] { u, v, common });
+            } else if (common > heap.peek()[2]) {
+               heap.poll();
+               heap.add(new long[] { u, v, common });
+            }
+         }
+      });
+      for (PriorityQueue<long[]> heap : heaps)
+         topPairs.addAll(heap);
+      Collections.sort(topPairs, (a, b) -> Long.compare(b[2], a[2]));
+      if (topPairs.size() > TOP_PAIRS)
+         topPairs.subList(TOP_PAIRS, topPairs.size()).clear();
+   }//end mutualFriends
+
+   private int intersect(int u, int v) {
+      int i = off[u], ie = off[u] + degree[u];
+      int j = off[v], je = off[v] + degree[v];
+      int count = 0;
+      while (i < ie && j < je) {
+         if (adj[i] < adj[j]) i++;
+         else if (adj[i] > adj[j]) j++;
+         else { count++; i++; j++; }
+      }
+      return count;
+   }//end intersect
+
+   // writes the rows of the users placed on one shard, one transaction per shard
+   private int write(ShardRouter shards, int shard, Set<String> dirty, long mark) throws Exception {
+      ProfNetwork esql = shards.get(shard);
+      int written = 0;
+      esql.beginTransaction();
+      try {
+         String target;
+         if (dirty == null) {
+            esql.executeUpdate("TRUNCATE UserNetworkStats");
+            target = "UserNetworkStats";
+         } else {
+            esql.executeUpdate("CREATE TEMP TABLE stats_stage (LIKE UserNetworkStats) ON COMMIT DROP");
+            target = "stats_stage";
+         }
+
+         String copy = "COPY " + target + "(userId, degree, componentId, twoHopReach) FROM STDIN";
+         StringBuilder chunk = new StringBuilder();
+         int inChunk = 0;
+         for (int u = 0; u < n; u++) {
+            if (!affected[u] || shards.shardOf(names.get(u)) != shard)
+               continue;
+            chunk.append(escape(names.get(u))).append('\t').append(degree[u]).append('\t')
+                 .append(escape(component[u])).append('\t').append(reach[u]).append('\n');
+            written++;
+            if (++inChunk == COPY_CHUNK) {
+               esql.copyIn(copy, new StringReader(chunk.toString()));
+               chunk.setLength(0);
+               inChunk = 0;
+            }
+         }
+         if (dirty != null) {
+            // changed users without accepted connections left
+            for (String userId : dirty) {
+               if (ids.containsKey(userId) || shards.shardOf(userId) != shard)
+                  continue;
+               chunk.append(escape(userId)).append("\t0\t").append(escape(userId)).append("\t0\n");
+               written++;
+            }
+         }
+         if (chunk.length() > 0)
+            esql.copyIn(copy, new StringReader(chunk.toString()));
+
+         if (dirty != null)
+            esql.executeUpdate("INSERT INTO UserNetworkStats SELECT * FROM stats_stage ON CONFLICT (userId) DO UPDATE SET "
+                             + "degree = EXCLUDED.degree, componentId = EXCLUDED.componentId, twoHopReach = EXCLUDED.twoHopReach");
+
+         esql.executeUpdate("TRUNCATE MutualFriends");
+         chunk.setLength(0);
+         for (long[] p : topPairs)
+            if (shards.shardOf(names.get((int) p[0])) == shard)
+               chunk.append(escape(names.get((int) p[0]))).append('\t')
+                    .append(escape(names.get((int) p[1]))).append('\t').append(p[2]).append('\n');
+         if (chunk.length() > 0)
+            esql.copyIn("COPY MutualFriends(userA, userB, mutualCount) FROM STDIN", new StringReader(chunk.toString()));
+
+         esql.executeUpdate("DELETE FROM NetworkStats_dirty WHERE seq <= " + mark);
+         esql.commit();
+      } catch (Exception e) {
+         esql.rollback();
+         throw e;
+      }
+      return written;
+   }//end write
+
+   // COPY text format escapes
+   private static String escape(String value) {
+      return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+   }//end escape
+
+   private static void parallelFor(int count, IntConsumer body) {
+      ForkJoinPool.commonPool().invoke(new Range(0, count, body));
+   }//end parallelFor
+
+   private static class Range extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final int lo;
+      private final int hi;
+      private final transient IntConsumer body;
+
+      Range(int lo, int hi, IntConsumer body) {
+         this.lo = lo;
+         this.hi = hi;
+         this.body = body;
+      }
+
+      protected void compute() {
+         if (hi - lo <= LEAF) {
+            for (int i = lo; i < hi; i++)
+               body.accept(i);
+            return;
+         }
+         int mid = (lo + hi) >>> 1;
+         invokeAll(new Range(lo, mid, body), new Range(mid, hi, body));
+      }
+   }//end Range
+
+}//end NetworkStats
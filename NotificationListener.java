@@ -0,0 +1,147 @@
+/*
+ * Push notifications
+ * =============================
+ *
+ * Listens for the new_message channel fired by the trigger in
+ * trigger.sql.txt and the friend_request channel notified by SendRequest,
+ * and hands the events to the sessions of the users they are addressed to.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.postgresql.PGNotification;
+
+/**
+ * This class owns dedicated database connections, one per shard, that do
+ * nothing but LISTEN. A daemon thread per connection waits for
+ * notifications and dispatches them to the handlers subscribed for the
+ * receiving user, so nobody has to poll the Message table to find out
+ * about new messages.
+ *
+ * Payloads:
+ *    new_message    : receiverId,senderId,msgId
+ *    friend_request : userId,connectionId
+ *
+ */
+public class NotificationListener {
+
+   private static final int POLL_MILLIS = 500;
+   private static final int RECENT = 1024;
+
+   private final List<ProfNetwork> connections;
+   private final List<Thread> threads = new ArrayList<Thread>();
+   private final Map<String, List<Consumer<String>>> subscribers =
+      new ConcurrentHashMap<String, List<Consumer<String>>>();
+   private volatile boolean running = false;
+
+   // a message sent across shards is inserted, and notified, on both shards
+   private final Map<String, Boolean> recent = new LinkedHashMap<String, Boolean>() {
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+         return size() > RECENT;
+      }
+   };
+
+   /**
+    * Subscribes the connections to the notification channels.
+    *
+    * @param connections one connection per shard used only by this listener
+    * @throws java.sql.SQLException when LISTEN fails
+    */
+   public NotificationListener(List<ProfNetwork> connections) throws SQLException {
+      this.connections = connections;
+      for (ProfNetwork esql : connections) {
+         esql.executeUpdate("LISTEN new_message");
+         esql.executeUpdate("LISTEN friend_request");
+      }
+   }//end NotificationListener
+
+   /**
+    * Starts the dispatch threads.
+    */
+   public synchronized void start() {
+      if (running)
+         return;
+      running = true;
+      for (ProfNetwork esql : connections) {
+         Thread thread = new Thread(() -> listen(esql), "notification-listener");
+         thread.setDaemon(true);
+         thread.start();
+         threads.add(thread);
+      }
+   }//end start
+
+   /**
+    * Stops the dispatch threads and closes the listening connections.
+    */
+   public synchronized void stop() {
+      running = false;
+      for (Thread thread : threads) {
+         try {
+            thread.join(2 * POLL_MILLIS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      for (ProfNetwork esql : connections)
+         esql.cleanup();
+   }//end stop
+
+   /**
+    * Registers a handler for the alerts of a user.
+    */
+   public void subscribe(String userId, Consumer<String> handler) {
+      subscribers.computeIfAbsent(userId.trim(), k -> new CopyOnWriteArrayList<Consumer<String>>()).add(handler);
+   }//end subscribe
+
+   public void unsubscribe(String userId, Consumer<String> handler) {
+      List<Consumer<String>> handlers = subscribers.get(userId.trim());
+      if (handlers != null)
+         handlers.remove(handler);
+   }//end unsubscribe
+
+   private void listen(ProfNetwork esql) {
+      while (running) {
+         try {
+            for (PGNotification n : esql.getNotifications(POLL_MILLIS))
+               dispatch(n.getName(), n.getParameter());
+         } catch (SQLException e) {
+            System.err.println("Notification listener: " + e.getMessage());
+            try {
+               Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException ie) {
+               return;
+            }
+         }
+      }
+   }//end listen
+
+   private void dispatch(String channel, String payload) {
+      synchronized (recent) {
+         if (recent.put(channel + ":" + payload, Boolean.TRUE) != null)
+            return;
+      }
+      String[] p = payload.split(",");
+      String alert;
+      if ("new_message".equals(channel) && p.length == 3)
+         alert = String.format("New message from %s (msgid %s)", p[1], p[2]);
+      else if ("friend_request".equals(channel) && p.length == 2)
+         alert = String.format("New friend request from %s", p[1]);
+      else
+         return;
+
+      List<Consumer<String>> handlers = subscribers.get(p[0]);
+      if (handlers == null)
+         return;
+      for (Consumer<String> h : handlers)
+         h.accept(alert);
+   }//end dispatch
+
+}//end NotificationListener
@@ -21,11 +21,25 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.List;
 import java.util.Scanner;
+import java.util.function.Consumer;
 import javax.xml.stream.events.StartDocument;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -37,11 +51,46 @@ public class ProfNetwork {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // admission control of the database this connection goes to
+   private ConcurrencyLimiter _admission = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // off-heap userId -> name/email lookup shared by the listing screens
+   static UserDirectory directory = null;
+
+   // logged in users, a session expires after 30 minutes without use
+   static SessionManager sessions = new SessionManager(30 * 60 * 1000L);
+
+   // per user write limits, tokens per second and burst size
+   static RateLimiter limiter = new RateLimiter();
+   static {
+      limiter.limit("message", 1.0, 10);
+      limiter.limit("request", 0.2, 5);
+   }
+
+   // statements in flight per database, shared by all connections to the
+   // same shard so capacity grows with the number of shards
+   static Map<String, ConcurrencyLimiter> admission = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+
+   // one connection per shard database, every user lives on one shard
+   static ShardRouter shards = null;
+
+   // msgId blocks reserved from msgid_seq
+   static MessageIdAllocator msgIds = null;
+
+   // pushes new message and friend request alerts to logged in users
+   static NotificationListener listener = null;
+
+   // bitmap indexes over Work_Ex and Edu_det for the people search
+   static FacetIndex facets = null;
+
+   // new jobs, degrees and friends of the connections of a user
+   static ActivityFeed feed = null;
+
    /**
     * Creates a new instance of ProfNetwork
     *
@@ -58,6 +107,8 @@ public class ProfNetwork {
          // constructs the connection URL
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
+         this._admission = admission.computeIfAbsent(url, u -> new ConcurrencyLimiter(
+            Integer.getInteger("db.maxConcurrent", 8), Long.getLong("db.maxWaitMillis", 2000L)));
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
@@ -74,17 +125,24 @@ public class ProfNetwork {
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows inserted, changed or deleted
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql) throws SQLException {
+      _admission.acquire ();
+      try {
+         // creates a statement object
+         Statement stmt = this._connection.createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         int rows = stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+         return rows;
+      } finally {
+         _admission.release ();
+      }
    }//end executeUpdate
 
    /**
@@ -97,37 +155,42 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+      _admission.acquire ();
+      try {
+         // creates a statement object
+         Statement stmt = this._connection.createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                   System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         stmt.close ();
+         return rowCount;
+      } finally {
+         _admission.release ();
+      }
    }//end executeQuery
 
    /**
@@ -140,33 +203,92 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-          List<String> record = new ArrayList<String>();
-         for (int i=1; i<=numCol; ++i)
-            record.add(rs.getString (i));
-         result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      _admission.acquire ();
+      try {
+         // creates a statement object
+         Statement stmt = this._connection.createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and saves the data returned by the query.
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+             List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         stmt.close ();
+         return result;
+      } finally {
+         _admission.release ();
+      }
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and streams the results to a CSV
+    * or JSON file. Rows are read through a server side cursor, fetchSize
+    * rows at a time, so memory use does not depend on the result size.
+    *
+    * @param query the input query string
+    * @param file the output file
+    * @param json true to write JSON, false to write CSV
+    * @return the writer used, for row and byte counts
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the file
+    */
+   public ExportWriter executeQueryAndExportResult (String query, File file, boolean json) throws SQLException, IOException {
+      _admission.acquire ();
+      try {
+         // postgres only uses a cursor outside of autocommit mode
+         boolean autoCommit = this._connection.getAutoCommit ();
+         this._connection.setAutoCommit (false);
+         Statement stmt = this._connection.createStatement ();
+         stmt.setFetchSize (1000);
+         try {
+            ResultSet rs = stmt.executeQuery (query);
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            String[] columns = new String[numCol];
+            for (int i = 1; i <= numCol; ++i)
+               columns[i - 1] = rsmd.getColumnName (i);
+
+            ExportWriter out = new ExportWriter (file, columns, json);
+            try {
+               String[] record = new String[numCol];
+               while (rs.next ()){
+                  for (int i = 1; i <= numCol; ++i)
+                     record[i - 1] = rs.getString (i);
+                  out.writeRow (record);
+               }//end while
+            } finally {
+               out.close ();
+            }
+            return out;
+         } finally {
+            stmt.close ();
+            // read only, ending the transaction also closes the cursor
+            if (autoCommit) {
+               this._connection.rollback ();
+               this._connection.setAutoCommit (true);
+            }
+         }
+      } finally {
+         _admission.release ();
+      }
+   }//end executeQueryAndExportResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -176,20 +298,25 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+      _admission.acquire ();
+      try {
+          // creates a statement object
+          Statement stmt = this._connection.createStatement ();
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          if(rs.next()){
+             rowCount++;
+          }//end while
+          stmt.close ();
+          return rowCount;
+      } finally {
+         _admission.release ();
+      }
    }
 
    /**
@@ -210,6 +337,104 @@ public class ProfNetwork {
 	return -1;
    }
 
+   /**
+    * Method to wait for asynchronous notifications sent with NOTIFY to the
+    * channels this connection is listening on.
+    *
+    * @param timeoutMillis how long to wait, 0 waits until one arrives
+    * @return the notifications received, empty if none arrived in time
+    * @throws java.sql.SQLException when the connection fails
+    */
+   public PGNotification[] getNotifications (int timeoutMillis) throws SQLException {
+      PGNotification[] notifications = this._connection.unwrap (PGConnection.class).getNotifications (timeoutMillis);
+      return notifications == null ? new PGNotification[0] : notifications;
+   }//end getNotifications
+
+   /**
+    * Method to execute several update SQL statements as one JDBC batch in
+    * a single transaction. Either all statements are applied or none.
+    *
+    * @param sqls the input SQL strings
+    * @return the number of rows changed by each statement
+    * @throws java.sql.SQLException when any statement failed
+    */
+   public int[] executeBatch (List<String> sqls) throws SQLException {
+      _admission.acquire ();
+      try {
+         this._connection.setAutoCommit (false);
+         Statement stmt = this._connection.createStatement ();
+         try {
+            for (String sql : sqls)
+               stmt.addBatch (sql);
+            int[] rows = stmt.executeBatch ();
+            this._connection.commit ();
+            return rows;
+         } catch (SQLException e) {
+            this._connection.rollback ();
+            throw e;
+         } finally {
+            stmt.close ();
+            this._connection.setAutoCommit (true);
+         }
+      } finally {
+         _admission.release ();
+      }
+   }//end executeBatch
+
+   /**
+    * Method to bulk load rows with COPY ... FROM STDIN.
+    *
+    * @param sql the COPY statement
+    * @param from the rows in COPY text format
+    * @return the number of rows loaded
+    * @throws java.sql.SQLException when the COPY fails
+    * @throws java.io.IOException when reading the rows fails
+    */
+   public long copyIn (String sql, Reader from) throws SQLException, IOException {
+      _admission.acquire ();
+      try {
+         return this._connection.unwrap (PGConnection.class).getCopyAPI ().copyIn (sql, from);
+      } finally {
+         _admission.release ();
+      }
+   }//end copyIn
+
+   /**
+    * Method to bulk read rows with COPY ... TO STDOUT.
+    *
+    * @param sql the COPY statement
+    * @param to receives the rows in COPY text format
+    * @return the number of rows read
+    * @throws java.sql.SQLException when the COPY fails
+    * @throws java.io.IOException when writing the rows fails
+    */
+   public long copyOut (String sql, Writer to) throws SQLException, IOException {
+      _admission.acquire ();
+      try {
+         return this._connection.unwrap (PGConnection.class).getCopyAPI ().copyOut (sql, to);
+      } finally {
+         _admission.release ();
+      }
+   }//end copyOut
+
+   /**
+    * Methods to group several statements into one transaction. Statements
+    * run in autocommit mode outside of beginTransaction/commit.
+    */
+   public void beginTransaction () throws SQLException {
+      this._connection.setAutoCommit (false);
+   }//end beginTransaction
+
+   public void commit () throws SQLException {
+      this._connection.commit ();
+      this._connection.setAutoCommit (true);
+   }//end commit
+
+   public void rollback () throws SQLException {
+      this._connection.rollback ();
+      this._connection.setAutoCommit (true);
+   }//end rollback
+
    /**
     * Method to close the physical connection if it is open.
     */
@@ -229,12 +454,15 @@ public class ProfNetwork {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             ProfNetwork.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname>[,<dbname>...] <port> <user>" +
+            " [--stats [incremental] | --batch <file|-> [threads] [chunkSize]" +
+            " | --replay <users>[,<users>...] <seconds> [mix|-] [thinkMillis]" +
+            " | --migrate [dir] | --measure | --export <table> <dir> [csv|json]]");
          return;
       }//end if
 
@@ -248,7 +476,48 @@ public class ProfNetwork {
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new ProfNetwork (dbname, dbport, user, "");
+         // a comma separated list of databases shards the users across them
+         shards = ShardRouter.connect(dbname, dbport, user, "");
+         esql = shards.get(0);
+         // ids come from shard 0 only so they are unique across shards
+         msgIds = new MessageIdAllocator(esql, "msgid_seq");
+
+         // warm start from the directory snapshot, reloaded from USR when it is stale
+         directory = UserDirectory.open(new File(dbname.replace(',', '_') + ".usrdir"));
+         directory.sync(shards);
+
+         // batch jobs run without the menus
+         if (args.length > 3) {
+            if (args[3].equals("--stats"))
+               NetworkStats.run(shards, args.length > 4 && args[4].equals("incremental"));
+            else if (args[3].equals("--batch") && args.length > 4)
+               BatchRunner.run(shards, dbname, dbport, user, args[4],
+                               args.length > 5 ? Integer.parseInt(args[5]) : 4,
+                               args.length > 6 ? Integer.parseInt(args[6]) : 500);
+            else if (args[3].equals("--replay") && args.length > 5)
+               WorkloadDriver.run(shards, dbname, dbport, user, args[4], Integer.parseInt(args[5]),
+                                  args.length > 6 && !args[6].equals("-") ? args[6] : null,
+                                  args.length > 7 ? Long.parseLong(args[7]) : 1000);
+            else if (args[3].equals("--migrate"))
+               MigrationRunner.run(shards, args.length > 4 ? args[4] : "migrations");
+            else if (args[3].equals("--measure"))
+               MigrationRunner.measure(shards);
+            else if (args[3].equals("--export") && args.length > 5)
+               ExportTable(args[4], new File(args[5]), args.length > 6 && args[6].equals("json"));
+            else
+               System.err.println("Unknown option " + args[3]);
+            return;
+         }
+
+         // second connection per shard that only waits for notifications
+         List<ProfNetwork> listening = new ArrayList<ProfNetwork>();
+         for (String db : dbname.split(","))
+            listening.add(new ProfNetwork (db.trim(), dbport, user, ""));
+         listener = new NotificationListener(listening);
+         listener.start();
+
+         facets = FacetIndex.load(shards);
+         feed = new ActivityFeed(shards, new MessageIdAllocator(esql, "feed_seq"));
 
          boolean keepon = true;
          while(keepon) {
@@ -258,36 +527,50 @@ public class ProfNetwork {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            String session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
-               
+            if (session != null) {
+              String loggedIn = sessions.validate(session);
+              Consumer<String> alert = msg -> System.out.println("\n*** " + msg + " ***");
+              listener.subscribe(loggedIn, alert);
+
               boolean usermenu = true;
               while(usermenu) {
+                // every action is authorised by the session, not the database
+                String authorisedUser = sessions.validate(session);
+                if (authorisedUser == null) {
+                   System.out.println("Session expired, please log in again");
+                   break;
+                }
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
                 System.out.println("1. Manage Friends");
                 System.out.println("2. Update Profile");
                 System.out.println("3. Messenger");
-                
-                
+                System.out.println("4. Export Data");
+                System.out.println("5. Activity Feed");
+
                 System.out.println(".........................");
                 System.out.println("9. Log out");
+                // the shard holding the user's own rows
+                ProfNetwork home = shards.forUser(authorisedUser);
                 switch (readChoice()){
-                   case 1: FriendList(esql, authorisedUser); break;
-                   case 2: UpdateProfile(esql, authorisedUser); break;
-                   case 3: messenger(esql,  authorisedUser);break;
-                                    
+                   case 1: FriendList(home, authorisedUser); break;
+                   case 2: UpdateProfile(home, authorisedUser); break;
+                   case 3: messenger(home,  authorisedUser);break;
+                   case 4: ExportData(home, authorisedUser);break;
+                   case 5: ViewFeed(home, authorisedUser);break;
                    
-                   case 9: usermenu = false; break;
+                   case 9: sessions.invalidate(session); usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
+              listener.unsubscribe(loggedIn, alert);
             }
          }//end while
       }catch(Exception e) {
@@ -295,9 +578,18 @@ public class ProfNetwork {
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
-            if(esql != null) {
+            if(directory != null) {
+               directory.close();
+            }//end if
+            if(listener != null) {
+               listener.stop();
+            }//end if
+            System.out.println("Rate limited: " + limiter.stats());
+            for (Map.Entry<String, ConcurrencyLimiter> db : admission.entrySet())
+               System.out.println("Admission " + db.getKey() + ": " + db.getValue().stats());
+            if(shards != null) {
                System.out.print("Disconnecting from database...");
-               esql.cleanup ();
+               shards.cleanup ();
                System.out.println("Done\n\nBye !");
             }//end if
          }catch (Exception e) {
@@ -350,9 +642,10 @@ public class ProfNetwork {
          //System.out.println("Enter Date of Birth");
          //String dob = in.readLine();
 	 //Creating empty contact\block lists for a user
-	 String query = String.format("INSERT INTO USR (userId, password, email,) VALUES ('%s','%s','%s')", login, password, email);
+	 String query = String.format("INSERT INTO USR (userId, password, email) VALUES ('%s','%s','%s')", login, SessionManager.hashPassword(password), email);
 
-         esql.executeUpdate(query);
+         shards.forUser(login).executeUpdate(query);
+         directory.put(login, null, email);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -360,8 +653,9 @@ public class ProfNetwork {
    }//end
 
    /*
-    * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * Check log in credentials for an existing user and open a session.
+    * Plaintext passwords left from before hashing are upgraded on login
+    * @return session token or null if the credentials are wrong
     **/
    public static String LogIn(ProfNetwork esql){
       try{
@@ -369,17 +663,50 @@ public class ProfNetwork {
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
-
-         String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
-         return null;
+         return authenticate(shards, login, password);
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
       }
    }//end
+
+   /*
+    * The credential check of LogIn without the prompts, also used by the
+    * replay driver
+    * @return session token or null if the credentials are wrong
+    **/
+   static String authenticate(ShardRouter router, String login, String password) throws SQLException {
+      String stored = storedPassword(router, login, password);
+      if (stored == null)
+         return null;
+      // best effort, the password verified so the login goes ahead either way
+      if (SessionManager.needsRehash(stored)){
+         String rehash = String.format("update usr set password = '%s' where userid = '%s'", SessionManager.hashPassword(password), login);
+         try{
+            router.forUser(login).executeUpdate(rehash);
+         }catch(SQLException e){
+            System.err.println("Password of " + login.trim() + " not rehashed: " + e.getMessage());
+         }
+      }
+      return sessions.create(login);
+   }//end authenticate
+
+   /*
+    * The password check alone, writes nothing and creates no session
+    * @return true if the credentials are right
+    **/
+   static boolean checkPassword(ShardRouter router, String login, String password) throws SQLException {
+      return storedPassword(router, login, password) != null;
+   }//end checkPassword
+
+   // the stored password of login if password matches it, otherwise null
+   private static String storedPassword(ShardRouter router, String login, String password) throws SQLException {
+      String query = String.format("SELECT password FROM USR WHERE userId = '%s'", login);
+      List<List<String>> user = router.forUser(login).executeQueryAndReturnResult(query);
+      if (user.size() > 0 && SessionManager.verifyPassword(password, user.get(0).get(0)))
+         return user.get(0).get(0);
+      return null;
+   }//end storedPassword
    /// MANAGE FRIEND LIST
    public static void FriendList(ProfNetwork esql, String currentUser){
       try{
@@ -394,6 +721,7 @@ public class ProfNetwork {
             System.out.println("3. Remove Friend");
             System.out.println("4. Search People");
             System.out.println("5. Go to Friend List");
+            System.out.println("6. Search by Work and Education");
             System.out.println("9. Go back");
             System.out.println("****************************");
             switch(readChoice()){
@@ -404,6 +732,7 @@ public class ProfNetwork {
                case 3:RemoveFriend(esql, currentUser); break;
                case 4:SearchPeople(esql, currentUser); break;
                case 5:Friends(esql, currentUser); break; 
+               case 6:SearchProfiles(esql, currentUser); break;
                case 9: FL = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }
@@ -414,8 +743,7 @@ public class ProfNetwork {
     }
    public static void Friends(ProfNetwork esql, String currentUser) {
       try{
-         String query = String.format("select * from Connection where status = 'Accept' AND userid ='%s'",currentUser);
-         esql.executeQueryAndPrintResult(query);
+         esql.executeQueryAndPrintResult(friendsQuery(currentUser));
          boolean stay = true;
          while(stay){
             System.out.println("----------------------------------------------");
@@ -452,9 +780,9 @@ public class ProfNetwork {
 
                switch(readChoice()){
                   case 1:String query = String.format("select U.name, U.email, U.userid, W.company, W.role from USR U, Work_Ex W  where U.userid = '%s' and W.userid = '%s'", friend, friend);
-                         int num1 = esql.executeQuery(query);
+                         int num1 = shards.forUser(friend).executeQuery(query);
                          if (num1>0){
-                           esql.executeQueryAndPrintResult(query);
+                           shards.forUser(friend).executeQueryAndPrintResult(query);
                         }
                          else{
                             System.out.println("Profile Does not Exist");
@@ -477,14 +805,31 @@ public class ProfNetwork {
       }
    }
 
+   /*
+    * Prints the result of a Connection query whose first column is the
+    * connectionid. The name is resolved through the user directory so the
+    * query does not have to join USR
+    * @return number of rows printed
+    **/
+   private static int printWithNames(ProfNetwork esql, String query, String header) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query);
+      if (!rows.isEmpty())
+         System.out.println("name\t" + header);
+      for (List<String> row : rows) {
+         System.out.print(directory.name(row.get(0)) + "\t");
+         for (String value : row)
+            System.out.print(value + "\t");
+         System.out.println();
+      }
+      return rows.size();
+   }
+
    private static void viewFriendsOfFriends(ProfNetwork esql, String currentUser, String friend) {
       try{
-         String query = String.format("select U.name,C.connectionid from Connection C, USR U where userid = '%s' and status = 'Accept' and C.connectionid = U.userid", friend);
-         int num = esql.executeQuery(query);
+         int num = printWithNames(shards.forUser(friend), friendIdsQuery(friend), "connectionid\t");
          if(num < 1){
             System.out.println("User does not have Friends");
          }else{
-            esql.executeQueryAndPrintResult(query);
             boolean FF = true;
             while(FF){
                System.out.println("---------------------------");
@@ -497,15 +842,15 @@ public class ProfNetwork {
 
                switch(readChoice()){
                   case 1:String query1 = String.format("select U.name, U.dateofbirth, U.userid, W.company, W.role, E.major, E.degree from USR U, Work_Ex W, Edu_det E  where U.userid = '%s' and W.userid = '%s'", friend, friend);
-                        int num1 = esql.executeQuery(query1);
+                        int num1 = shards.forUser(friend).executeQuery(query1);
                         if (num1>0){
                         String q1 = String.format("select * from connection where userid = '%s' and connectionid = '%s' or userid = '%s' and connectionid='%s'",currentUser,friend,friend,currentUser);
                         int num2 = esql.executeQuery(q1);
                         if (num2>0){
-                           esql.executeQueryAndPrintResult(query1);
+                           shards.forUser(friend).executeQueryAndPrintResult(query1);
                          }else{ 
                            String q2 = String.format("select U.name,E.major,E.degree,W.company,W.role from USR U, Work_Ex W, Edu_det E where U.userid = '%s' and W.userid = '%s' and E.userid = '%s'",friend,friend,friend);
-                           esql.executeQueryAndPrintResult(q2);
+                           shards.forUser(friend).executeQueryAndPrintResult(q2);
                         }
                            
                         }
@@ -532,11 +877,16 @@ public class ProfNetwork {
 
    public static void SendRequest(ProfNetwork esql, String currentUser, String user){
       try{
+            if(!limiter.tryAcquire(currentUser, "request")){
+               System.out.println("Too many friend requests, please try again later");
+               return;
+            }
             if(connectionDepthcheck(esql,currentUser,user)){
-               String reqTo = String.format("insert into connection (userid,connectionid,status) values ('%s','%s','Request')", user, currentUser);
-               String reqFrom = String.format("insert into connection (userid,connectionid,status) values ('%s','%s','Request')", currentUser, user);
-               esql.executeQuery(reqTo);
-               esql.executeQuery(reqFrom);
+               String reqTo = requestInsertSql(user, currentUser);
+               String reqFrom = requestInsertSql(currentUser, user);
+               String undoTo = String.format("delete from Connection where userid = '%s' and connectionid = '%s' and status = 'Request'", user, currentUser);
+               bothSides(user, reqTo, undoTo, currentUser, reqFrom);
+               shards.forUser(user).executeUpdate(requestNotifySql(user, currentUser));
                System.out.println("Request Sent Successfully");
             }
             
@@ -545,27 +895,92 @@ public class ProfNetwork {
          }
    
    } 
+   /*
+    * Users with fewer than 4 friends may send a request to anyone, the others
+    * only to people within 3 levels of connection. The friends are counted
+    * live, UserNetworkStats is only as fresh as the last NetworkStats run
+    **/
    private static boolean connectionDepthcheck(ProfNetwork esql, String currentUser, String user) {
       try{
-         boolean status = false;
-         String query = String.format("SELECT count(*) FROM connection_usr WHERE userid = '%s' AND status = 'Accept' OR connectionid = '%s' AND status = 'Accept'", currentUser, currentUser);
-         int count = esql.executeQuery(query);
+         String query = String.format("select count(*) from Connection where userid = '%s' and status = 'Accept'", currentUser);
+         List<List<String>> stats = esql.executeQueryAndReturnResult(query);
+         int count = Integer.parseInt(stats.get(0).get(0).trim());
          if (count < 4){
             return true;
-         else{
-            if 
          }
-      }
-      return false;
+         // walk the levels with one scatter/gather per level, each shard only
+         // gets the ids of the users whose Connection rows it holds
+         Set<String> seen = new HashSet<String>();
+         Set<String> level = new HashSet<String>();
+         level.add(currentUser.trim());
+         for (int depth = 0; depth < 3 && !level.isEmpty(); depth++){
+            seen.addAll(level);
+            Map<Integer, List<String>> byShard = new HashMap<Integer, List<String>>();
+            for (String id : level)
+               byShard.computeIfAbsent(shards.shardOf(id), s -> new ArrayList<String>()).add(id);
+            Map<Integer, String> queries = new HashMap<Integer, String>();
+            for (Map.Entry<Integer, List<String>> part : byShard.entrySet())
+               queries.put(part.getKey(), String.format("select connectionid from Connection where status = 'Accept' AND userid in (%s)", quoteList(part.getValue())));
+            Set<String> next = new HashSet<String>();
+            for (List<String> row : shards.queryEach(queries)){
+               String id = row.get(0).trim();
+               if (id.equals(user.trim()))
+                  return true;
+               if (!seen.contains(id))
+                  next.add(id);
+            }
+            level = next;
+         }
+         System.out.println("You can only send requests to people within 3 levels of connection");
+         return false;
       } catch(Exception e){
+         System.err.println(e.getMessage());
          return false;
       } 
    }
 
+   /*
+    * Applies the two rows of a change between two users, e.g. both sides of
+    * a friendship. When the users share a shard both statements commit in
+    * one transaction. Otherwise each shard commits on its own: the first
+    * side is written, and when the second side fails the first is undone
+    * with undoSql. The SQLException says whether the undo worked, so the
+    * user learns about a change left half applied
+    **/
+   static void bothSides(String firstUser, String firstSql, String undoSql, String secondUser, String secondSql) throws SQLException {
+      ProfNetwork first = shards.forUser(firstUser);
+      ProfNetwork second = shards.forUser(secondUser);
+      if (first == second){
+         first.executeBatch(Arrays.asList(firstSql, secondSql));
+         return;
+      }
+      first.executeUpdate(firstSql);
+      try{
+         second.executeUpdate(secondSql);
+      }catch(SQLException e){
+         try{
+            first.executeUpdate(undoSql);
+         }catch(SQLException undo){
+            throw new SQLException("Only partly saved, the side of " + firstUser.trim() + " was kept: " + e.getMessage(), e);
+         }
+         throw new SQLException("Not saved: " + e.getMessage(), e);
+      }
+   }
+
+   /*
+    * Formats user ids as a quoted SQL list for an IN clause
+    **/
+   private static String quoteList(Collection<String> ids){
+      StringBuilder sb = new StringBuilder();
+      for (String id : ids)
+         sb.append(sb.length() == 0 ? "'" : ",'").append(id.replace("'", "''")).append("'");
+      return sb.toString();
+   }
+
    public static void ManageFriendRequest(ProfNetwork esql, String currentUser){
       try{
-         String query = String.format("select U.name,C.connectionid, C.status from Connection C, USR U where C.userid = '%s' AND C.connectionid = U.userid AND status ='Request'",currentUser);
-         esql.executeQueryAndPrintResult(query);
+         String query = String.format("select C.connectionid, C.status from Connection C where C.userid = '%s' AND status ='Request'",currentUser);
+         printWithNames(esql, query, "connectionid\tstatus\t");
          System.out.println("Enter the Username of a Friend you want to Accept or Reject : ");
          String username = in.readLine();
          System.out.println("1. Accept");
@@ -574,14 +989,16 @@ public class ProfNetwork {
          switch(readChoice()){
             case 1:String AcceptRequest = String.format("update Connection set status = 'Accept' where userid = '%s' AND connectionid = '%s'", currentUser,username);
                    String AcceptRequest1 = String.format("update Connection set status = 'Accept' where userid = '%s' AND connectionid = '%s'", username,currentUser);
-                   esql.executeUpdate(AcceptRequest);
-                   esql.executeUpdate(AcceptRequest1);
+                   String undoAccept = String.format("update Connection set status = 'Request' where userid = '%s' AND connectionid = '%s'", currentUser,username);
+                   bothSides(currentUser, AcceptRequest, undoAccept, username, AcceptRequest1);
+                   feed.publish(currentUser, "friend", "is now connected with " + username.trim());
+                   feed.publish(username, "friend", "is now connected with " + currentUser.trim());
                    System.out.println("Friend Request Accepted");
                    break;
             case 2:String rejectRequest = String.format("update Connection set status = 'Reject' where userid = '%s' AND connectionid = '%s'", currentUser,username);
                    String rejectRequest1 = String.format("update Connection set status = 'Rejectt' where userid = '%s' AND connectionid = '%s'", username,currentUser);
-                   esql.executeUpdate(rejectRequest);
-                   esql.executeUpdate(rejectRequest1);
+                   String undoReject = String.format("update Connection set status = 'Request' where userid = '%s' AND connectionid = '%s'", currentUser,username);
+                   bothSides(currentUser, rejectRequest, undoReject, username, rejectRequest1);
                    System.out.println("Friend Request Accepted");
                    break;
             default:System.out.println("Invalid Choice"); break;
@@ -593,14 +1010,15 @@ public class ProfNetwork {
    }
    public static void RemoveFriend(ProfNetwork esql, String currentUser){
       try{
-         String query = String.format("select U.name,C.connectionid from Connection C, USR U where C.userid = '%s' AND status ='Accept' AND C.connectionid = U.userid",currentUser);
-         esql.executeQueryAndPrintResult(query);
+         String query = String.format("select C.connectionid from Connection C where C.userid = '%s' AND status ='Accept'",currentUser);
+         printWithNames(esql, query, "connectionid\t");
          System.out.println("Enter the Username of a Friend you want to Remove : ");
          String username = in.readLine();
          String DeleteRequest = String.format("delete from Connection where userid = '%s' and connectionid = '%s'", currentUser,username);
          String DeleteRequest1 = String.format("delete from Connection where userid = '%s' and connectionid = '%s'", username,currentUser);
-         esql.executeQuery(DeleteRequest);
-         esql.executeQuery(DeleteRequest1);
+         // the list above only shows accepted friends
+         String undoDelete = String.format("insert into Connection (userid, connectionid, status) values ('%s', '%s', 'Accept') on conflict do nothing", currentUser,username);
+         bothSides(currentUser, DeleteRequest, undoDelete, username, DeleteRequest1);
          System.out.println("Friend Request Accepted");
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -616,14 +1034,16 @@ public class ProfNetwork {
          System.out.print("\t Enter the Name of the Person : ");
          String SearchName = in.readLine();
 
-        // String query = String.format("select name, userid, email from USR where name like '%'+'%s'+'%'", SearchName);
-        String query =  "select name, userid, email from USR where name like %" + SearchName;
-        int num = esql.executeQuery(query);
-         if (num > 0){
-            esql.executeQueryAndPrintResult(query);
+        // users are spread over the shards, search all of them at once
+        String query = String.format("select name, userid, email from USR where name like '%%%s%%'", SearchName);
+        List<List<String>> people = shards.queryAll(query);
+         if (people.size() > 0){
+            System.out.println("name\tuserid\temail\t");
+            for (List<String> person : people)
+               System.out.println(person.get(0) + "\t" + person.get(1) + "\t" + person.get(2) + "\t");
             System.out.print("\t Do you want to Add Friend ? \t yes \t no");
             String check = in.readLine();
-            if (check == "yes"){
+            if (check.trim().equals("yes")){
                System.out.println("Enter Username");
                String user = in.readLine();
                SendRequest(esql, currentUser,user);
@@ -634,6 +1054,46 @@ public class ProfNetwork {
          System.err.println(e.getMessage());
       }
    }
+
+   /*
+    * Finds people by their work history and education. Several values of
+    * a facet are separated by commas, an empty answer leaves the facet out
+    **/
+   public static void SearchProfiles(ProfNetwork esql, String currentUser){
+      try{
+         Map<String, List<String>> filters = new HashMap<String, List<String>>();
+         for (String facet : FacetIndex.FACETS){
+            System.out.print("\t " + facet + " : ");
+            String values = in.readLine().trim();
+            if (!values.isEmpty())
+               filters.put(facet, Arrays.asList(values.split("\\s*,\\s*")));
+         }
+         FacetIndex.Result result = facets.search(filters, 20);
+         System.out.println(result.total + " people found");
+         if (result.total > 0){
+            System.out.println("name\tuserid\t");
+            for (String user : result.users)
+               System.out.println(directory.name(user) + "\t" + user + "\t");
+         }
+         for (Map.Entry<String, Map<String, Integer>> facet : result.counts.entrySet()){
+            if (facet.getValue().isEmpty())
+               continue;
+            System.out.print(facet.getKey() + " :");
+            for (Map.Entry<String, Integer> value : facet.getValue().entrySet())
+               System.out.print("  " + value.getKey() + " (" + value.getValue() + ")");
+            System.out.println();
+         }
+         if (result.total > 0){
+            System.out.print("\t Do you want to Add Friend ? \t yes \t no");
+            if (in.readLine().trim().equals("yes")){
+               System.out.println("Enter Username");
+               SendRequest(esql, currentUser, in.readLine());
+            }
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
    //
    //
    //
@@ -662,6 +1122,7 @@ public class ProfNetwork {
                  System.out.println("6. Update Email");
                  System.out.println("7. Update Name");
                  System.out.println("8. Update Date of Birth");
+                 System.out.println("0. Edit Several Fields at once");
                  System.out.println("9. Go back");
                  switch (readChoice()){
                     case 1: ChangePassword(esql, currentUser); break;
@@ -672,6 +1133,7 @@ public class ProfNetwork {
                     case 6: UpdateEmail(esql, currentUser); break;
                     case 7: updateName(esql, currentUser);break;
                     case 8: updateDate(esql, currentUser);break;
+                    case 0: EditProfile(esql, currentUser);break;
                     case 9: udProfile = false; break;
                     default : System.out.println("Unrecognized choice!"); break;
                  }
@@ -684,11 +1146,96 @@ public class ProfNetwork {
    
  
    
+   /*
+    * Collects changes to the profile, one work experience and one degree,
+    * and applies them as one batch in one transaction. Every statement is
+    * conditional on its row, the row counts tell which parts matched.
+    * An empty answer keeps a field
+    **/
+   public static void EditProfile(ProfNetwork esql, String currentUser){
+      try{
+         List<String> sqls = new ArrayList<String>();
+         List<String> parts = new ArrayList<String>();
+
+         List<String> usr = new ArrayList<String>();
+         System.out.println("Enter Name");
+         String name = in.readLine().trim();
+         if (!name.isEmpty()) usr.add(String.format("name = '%s'", name));
+         System.out.println("Enter New Email");
+         String email = in.readLine().trim();
+         if (!email.isEmpty()) usr.add(String.format("email = '%s'", email));
+         System.out.println("Enter Date of Birth");
+         String dob = in.readLine().trim();
+         if (!dob.isEmpty()) usr.add(String.format("dateofbirth = '%s'", dob));
+         if (!usr.isEmpty()){
+            sqls.add(String.format("update usr set %s where userid = '%s'", String.join(", ", usr), currentUser));
+            parts.add("Profile");
+         }
+
+         System.out.println("Enter Company of the Work Experience to change (empty to skip)");
+         String company = in.readLine().trim();
+         String location = "";
+         if (!company.isEmpty()){
+            System.out.println("Whats your role ? ");
+            String role = in.readLine().trim();
+            System.out.println("Enter Start Date? ");
+            String startDate = in.readLine().trim();
+            List<String> work = new ArrayList<String>();
+            System.out.println("Enter End Date");
+            String endDate = in.readLine().trim();
+            if (!endDate.isEmpty()) work.add(String.format("endDate = '%s'", endDate));
+            System.out.println("Enter Location");
+            location = in.readLine().trim();
+            if (!location.isEmpty()) work.add(String.format("location = '%s'", location));
+            if (!work.isEmpty()){
+               sqls.add(String.format("update Work_Ex set %s where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'",
+                                      String.join(", ", work), currentUser, company, role, startDate));
+               parts.add("Work Experience");
+            }
+         }
+
+         System.out.println("Enter Major of the Degree to change (empty to skip)");
+         String major = in.readLine().trim();
+         if (!major.isEmpty()){
+            System.out.println("Enter Degree ");
+            String degree = in.readLine().trim();
+            List<String> edu = new ArrayList<String>();
+            System.out.println("Enter Start Date :  ");
+            String startDate = in.readLine().trim();
+            if (!startDate.isEmpty()) edu.add(String.format("startDate = '%s'", startDate));
+            System.out.println("Enter End Date :  ");
+            String endDate = in.readLine().trim();
+            if (!endDate.isEmpty()) edu.add(String.format("endDate = '%s'", endDate));
+            if (!edu.isEmpty()){
+               sqls.add(String.format("update Edu_det set %s where userid = '%s' AND major = '%s' AND degree = '%s'",
+                                      String.join(", ", edu), currentUser, major, degree));
+               parts.add("Educational Details");
+            }
+         }
+
+         if (sqls.isEmpty()){
+            System.out.println("Nothing to change");
+            return;
+         }
+         int[] rows = esql.executeBatch(sqls);
+         for (int i = 0; i < rows.length; i++)
+            System.out.println(parts.get(i) + (rows[i] > 0 ? " Updated" : " Does not Exist"));
+         if (!usr.isEmpty() && rows[0] > 0){
+            if (!name.isEmpty()) directory.updateName(currentUser, name);
+            if (!email.isEmpty()) directory.updateEmail(currentUser, email);
+         }
+         if (!location.isEmpty() && rows[parts.indexOf("Work Experience")] > 0)
+            facets.reindexUser(shards, currentUser);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
    private static void updateDate(ProfNetwork esql, String currentUser) {
       try{
          System.out.println("Enter Date of Birth");
          String dob = in.readLine();
-         String query = String.format("update usr set dateofbirth = '%s' where userid = '%s'",dob,currentUser);
+         String query = userUpdateSql("dateofbirth", dob, currentUser);
          esql.executeUpdate(query);
          
       }catch(Exception e){
@@ -700,9 +1247,10 @@ public class ProfNetwork {
       try{
          System.out.println("Enter Name");
          String name = in.readLine();
-         String query = String.format("update usr set name = '%s' where userid = '%s'",name,currentUser);
+         String query = userUpdateSql("name", name, currentUser);
          esql.executeUpdate(query);
-         
+         directory.updateName(currentUser, name);
+
       }catch(Exception e){
          System.err.println(e.getMessage());
       }
@@ -712,7 +1260,7 @@ public class ProfNetwork {
       try{
          System.out.println("Enter New Password");
          String password = in.readLine();
-         String query = String.format("update usr set password = '%s' where userid = '%s'",password,currentUser);
+         String query = String.format("update usr set password = '%s' where userid = '%s'",SessionManager.hashPassword(password),currentUser);
          esql.executeUpdate(query);
          System.out.print("\t Password changed");
       }catch(Exception e){
@@ -732,8 +1280,10 @@ public class ProfNetwork {
          String startDate = in.readLine();
          System.out.println("Enter End Date");
          String endDate = in.readLine();
-         String query = String.format("insert into Work_Ex (userid, company, role, location, startDate, endDate) values ('%s','%s','%s','%s','%s','%s')",currentUser, company , role, location, startDate, endDate);
+         String query = workExInsertSql(currentUser, company , role, location, startDate, endDate);
          esql.executeUpdate(query);
+         facets.reindexUser(shards, currentUser);
+         feed.publish(currentUser, "work", String.format("started as %s at %s", role.trim(), company.trim()));
          System.out.print("\t Work Experience Added");
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -741,8 +1291,7 @@ public class ProfNetwork {
    }
    public static void UpdateWorkExp(ProfNetwork esql, String currentUser){
       try{
-            String displayWorkEx = String.format("select * from Work_Ex where userid = '%s'", currentUser);
-            esql.executeQueryAndPrintResult(displayWorkEx);
+            esql.executeQueryAndPrintResult(workExQuery(currentUser));
             System.out.println("Enter Compay");
             String company = in.readLine();
             System.out.println("Whats your role ? ");
@@ -776,11 +1325,10 @@ public class ProfNetwork {
    }
    private static void removeWorkEx(ProfNetwork esql, String currentUser, String company, String role,String startDate) {
       try{
-         String ifExists = String.format("select * from Work_Ex where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'",currentUser, company , role, startDate);
-         int res = esql.executeQuery(ifExists);
-         if (res > 0){
-            String query = String.format("delete from Work_Ex where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'",currentUser, company , role, startDate);
-            esql.executeUpdate(query);
+         // the delete is its own existence check, no row means nothing matched
+         String query = String.format("delete from Work_Ex where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'",currentUser, company , role, startDate);
+         if (esql.executeUpdate(query) > 0){
+            facets.reindexUser(shards, currentUser);
             System.out.print("\t Work Experience removed");
          }else{
             System.out.println("Work Experience Does not Exist");
@@ -794,11 +1342,8 @@ public class ProfNetwork {
       try{
          System.out.println("Enter Location");
          String location = in.readLine();
-         String ifExists = String.format("select * from Work_Ex where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'",currentUser, company , role, startDate);
-         int res = esql.executeQuery(ifExists);
-         if (res > 0){
-            String query = String.format("update Work_Ex set location = '%s' where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'",location,currentUser, company , role, startDate);
-            esql.executeUpdate(query);
+         if (esql.executeUpdate(workExUpdateSql("location", location, currentUser, company, role, startDate)) > 0){
+            facets.reindexUser(shards, currentUser);
             System.out.print("\t Work Experience Updated");
          }else{
             System.out.println("Pleas Add Work Experience");
@@ -812,11 +1357,7 @@ public class ProfNetwork {
       try{
          System.out.println("Enter End Date");
          String endDate = in.readLine();
-         String ifExists = String.format("select * from Work_Ex where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'",currentUser, company , role, startDate);
-         int res = esql.executeQuery(ifExists);
-         if (res > 0){
-            String query = String.format("update Work_Ex set endDate = '%s' where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'",endDate,currentUser, company , role, startDate);
-            esql.executeUpdate(query);
+         if (esql.executeUpdate(workExUpdateSql("endDate", endDate, currentUser, company, role, startDate)) > 0){
             System.out.print("\t Work Experience Updated");
          }else{
             System.out.println("Pleas Add Work Experience");
@@ -838,8 +1379,10 @@ public class ProfNetwork {
          String startDate = in.readLine();
          System.out.println("Enter End Date");
          String endDate = in.readLine();
-         String query = String.format("insert into Edu_det (userid, institutionname, major, degree, startDate, endDate) values ('%s','%s','%s','%s','%s','%s')",currentUser, institution , major, degree, startDate, endDate);
+         String query = eduDetInsertSql(currentUser, institution , major, degree, startDate, endDate);
          esql.executeUpdate(query);
+         facets.reindexUser(shards, currentUser);
+         feed.publish(currentUser, "edu", String.format("added a %s in %s from %s", degree.trim(), major.trim(), institution.trim()));
          System.out.print("\t Work Experience Added");
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -881,11 +1424,7 @@ public class ProfNetwork {
       try{
          System.out.println("Enter Start Date :  ");
          String startDate = in.readLine();
-         String ifExists = String.format("select * from Edu_det where userid = '%s' AND major = '%s' AND degree = '%s'", currentUser, major, degree);
-         int res = esql.executeQuery(ifExists);
-         if (res > 0){
-            String query = String.format("update Edu_det set startDate = '%s' where userid = '%s' AND major = '%s' AND degree = '%s'",startDate,currentUser, major , degree);
-            esql.executeUpdate(query);
+         if (esql.executeUpdate(eduDetUpdateSql("startDate", startDate, currentUser, major, degree)) > 0){
             System.out.print("\n Educational Details Updated");
          }else{
             System.out.println("Education Details Does not Exist");
@@ -898,11 +1437,7 @@ public class ProfNetwork {
       try{
          System.out.println("Enter End Date :  ");
          String endDate = in.readLine();
-         String ifExists = String.format("select * from Edu_det where userid = '%s' AND major = '%s' AND degree = '%s'", currentUser, major, degree);
-         int res = esql.executeQuery(ifExists);
-         if (res > 0){
-            String query = String.format("update Edu_det set endDate = '%s' where userid = '%s' AND major = '%s' AND degree = '%s'",endDate,currentUser, major , degree);
-            esql.executeUpdate(query);
+         if (esql.executeUpdate(eduDetUpdateSql("endDate", endDate, currentUser, major, degree)) > 0){
             System.out.print("\n Educational Details Updated");
          }else{
             System.out.println("Education Details Does not Exist");
@@ -913,11 +1448,9 @@ public class ProfNetwork {
    }
    public static void removeDegree(ProfNetwork esql, String currentUser, String major, String degree) {
       try{
-         String ifExists = String.format("select * from Edu_det where userid = '%s' AND major = '%s' AND degree = '%s'", currentUser, major, degree);
-         int res = esql.executeQuery(ifExists);
-         if (res > 0){
-            String query = String.format("delete from Edu_det  where userid = '%s' AND major = '%s' AND degree = '%s'",currentUser, major , degree);
-            esql.executeUpdate(query);
+         String query = String.format("delete from Edu_det  where userid = '%s' AND major = '%s' AND degree = '%s'",currentUser, major , degree);
+         if (esql.executeUpdate(query) > 0){
+            facets.reindexUser(shards, currentUser);
             System.out.print("\n Educational Details Removed");
          }else{
             System.out.println("Education Details Does not Exist");
@@ -930,8 +1463,9 @@ public class ProfNetwork {
       try{
          System.out.println("Enter New Email");
          String email = in.readLine();
-         String query = String.format("update usr set email = '%s' where userid = '%s'",email,currentUser);
+         String query = userUpdateSql("email", email, currentUser);
          esql.executeUpdate(query);
+         directory.updateEmail(currentUser, email);
          System.out.print("\n Email Updated");
       }catch(Exception e){
          System.err.println(e.getMessage());
@@ -950,6 +1484,8 @@ public class ProfNetwork {
             System.out.println("1. Send Message");
             System.out.println("2. Inbox");
             System.out.println("3. Sent");
+            System.out.println("4. Conversation");
+            System.out.println("5. Search Messages");
             System.out.println("9. Go back");
             System.out.println("***************************************");
 
@@ -959,6 +1495,10 @@ public class ProfNetwork {
                       NewMessage(esql, currentUser, user);break;
                case 2:viewRecievedMessage(esql, currentUser);break;
                case 3:viewSentMessage(esql, currentUser);break;
+               case 4:System.out.println("Enter Username of Friend");
+                      String friend = in.readLine();
+                      viewConversation(esql, currentUser, friend);break;
+               case 5:SearchMessages(esql, currentUser);break;
                case 9:m = false; break;
             }
          }
@@ -968,10 +1508,114 @@ public class ProfNetwork {
       
    }
 
+   /*
+    * Shows the messages exchanged with one friend, oldest first. The newest
+    * sendTime shown is kept as a cursor so a refresh only fetches the
+    * messages that arrived since. sendTime is the start of the inserting
+    * transaction and msgIds come from per process blocks, neither follows
+    * commit order, so a refresh reads CONVERSATION_OVERLAP seconds before
+    * the cursor again and skips the msgIds already shown
+    **/
+   public static void viewConversation(ProfNetwork esql, String currentUser, String friend){
+      try{
+         String sinceTime = null;
+         Set<Long> shown = new HashSet<Long>();
+         boolean conv = true;
+         while(conv){
+            List<List<String>> rows = esql.executeQueryAndReturnResult(conversationQuery(currentUser, friend, sinceTime, 50));
+            if (sinceTime == null)
+               Collections.reverse(rows);   // first page is read newest first
+            for (List<String> row : rows){
+               if (!shown.add(Long.parseLong(row.get(0).trim())))
+                  continue;
+               System.out.println(String.format("[%s] %s: %s", row.get(2), row.get(1).trim(), row.get(3).trim()));
+            }
+            if (!rows.isEmpty()){
+               sinceTime = rows.get(rows.size() - 1).get(2);
+            }else if (sinceTime == null){
+               System.out.println("No messages yet");
+            }
+
+            System.out.println("---------------------------");
+            System.out.println("1. Refresh");
+            System.out.println("2. Reply");
+            System.out.println("9. Go back");
+            switch(readChoice()){
+               case 1: break;
+               case 2: NewMessage(esql, currentUser, friend); break;
+               case 9: conv = false; break;
+               default: System.out.println("Invalid choice");
+            }
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   // seconds a refresh of a conversation reads before its cursor again
+   static final int CONVERSATION_OVERLAP = Integer.getInteger("conversation.overlapSeconds", 60);
+
+   /*
+    * Messages between two users through Message_conv_index. Without a cursor
+    * the newest pageSize messages are returned newest first, with a cursor
+    * every message sent from CONVERSATION_OVERLAP seconds before it on is
+    * returned oldest first
+    * @return the query, columns msgId, senderId, sendTime, contents
+    **/
+   public static String conversationQuery(String user1, String user2, String sinceTime, int pageSize){
+      String thread = String.format("least(senderId, receiverId) = least('%s', '%s') AND greatest(senderId, receiverId) = greatest('%s', '%s')", user1, user2, user1, user2);
+      if (sinceTime == null)
+         return String.format("select msgId, senderId, sendTime, contents from Message where %s order by sendTime desc, msgId desc limit %d", thread, pageSize);
+      return String.format("select msgId, senderId, sendTime, contents from Message where %s AND sendTime >= timestamp '%s' - interval '%d seconds' order by sendTime, msgId", thread, sinceTime, CONVERSATION_OVERLAP);
+   }
+
+   /*
+    * Full text search over the inbox and sent messages of the current user,
+    * best matches first, one page at a time
+    **/
+   public static void SearchMessages(ProfNetwork esql, String currentUser){
+      try{
+         System.out.println("Enter search terms");
+         String terms = in.readLine();
+         int pageSize = 20;
+         int page = 0;
+         boolean search = true;
+         while(search){
+            int num = esql.executeQueryAndPrintResult(searchMessagesQuery(currentUser, terms, pageSize, page * pageSize));
+            if (num == 0)
+               System.out.println(page == 0 ? "No messages found" : "No more messages");
+            System.out.println("---------------------------");
+            System.out.println("1. Next page");
+            System.out.println("2. Previous page");
+            System.out.println("9. Go back");
+            switch(readChoice()){
+               case 1: if (num == pageSize) page++; break;
+               case 2: if (page > 0) page--; break;
+               case 9: search = false; break;
+               default: System.out.println("Invalid choice");
+            }
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Ranked match of the search terms against Message.contents_tsv (GIN
+    * index Message_tsv_index), limited to messages sent or received by user
+    * @return the query, columns msgId, senderId, receiverId, sendTime, rank, contents
+    **/
+   public static String searchMessagesQuery(String user, String terms, int limit, int offset){
+      return String.format("select msgId, senderId, receiverId, sendTime, round(ts_rank(contents_tsv, q)::numeric, 4) as rank, contents " +
+                           "from Message, websearch_to_tsquery('english', '%s') q " +
+                           "where contents_tsv @@ q AND (senderId = '%s' OR receiverId = '%s') " +
+                           "order by ts_rank(contents_tsv, q) desc, msgId desc limit %d offset %d",
+                           terms.replace("'", "''"), user, user, limit, offset);
+   }
+
    public static void viewRecievedMessage(ProfNetwork esql, String currentUser){
       try{
-         String query = String.format("select * from Message where receiverid='%s' and status ='Delivered'", currentUser);
-         esql.executeQueryAndPrintResult(query);
+         esql.executeQueryAndPrintResult(receivedMessagesQuery(currentUser));
          boolean delMsg = true;
          while(delMsg){
             System.out.println("1. Delete Message");
@@ -1045,11 +1689,20 @@ public class ProfNetwork {
 
    public static void NewMessage(ProfNetwork esql, String currentUser , String reciever){
       try {
+         if (!limiter.tryAcquire(currentUser, "message")){
+            System.out.println("Too many messages, please try again later");
+            return;
+         }
          System.out.println("what's the message ?");
          String contents = in.readLine();
-         String query = String.format("INSERT INTO Message (senderid,receiverid,contents,sendtime,deletestatus,status) values ( '%s', '%s' , '%s',CURRENT_TIMESTAMP, 0, 'Delivered';",currentUser,reciever,contents);
-         esql.executeUpdate(query);
-         
+         long msgId = msgIds.next();
+         String query = messageInsertSql(msgId, currentUser, reciever, contents);
+         // the receiver's shard holds the inbox copy, the sender's shard the sent copy
+         if (shards.shardOf(reciever) != shards.shardOf(currentUser))
+            bothSides(reciever, query, String.format("delete from Message where msgId = %d", msgId), currentUser, query);
+         else
+            shards.forUser(reciever).executeUpdate(query);
+         System.out.println("Message sent (msgid " + msgId + ")");
          
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -1058,6 +1711,124 @@ public class ProfNetwork {
    
 
   // MESSENGER ENDS
+
+   // EXPORT STARTS
+   /*
+    * Exports the profile, connections and messages of the logged in user.
+    * Whole tables are only exported by the --export option
+    **/
+   public static void ExportData(ProfNetwork esql, String currentUser){
+      try{
+         System.out.println("1. CSV");
+         System.out.println("2. JSON");
+         boolean json = readChoice() == 2;
+         System.out.println("Enter output directory");
+         File dir = new File(in.readLine().trim());
+         dir.mkdirs();
+
+         exportQuery(esql, String.format("select userid, email, name, dateofbirth from USR where userid = '%s'", currentUser), dir, "profile", json);
+         exportQuery(esql, String.format("select * from Work_Ex where userid = '%s'", currentUser), dir, "work_ex", json);
+         exportQuery(esql, String.format("select * from Edu_det where userid = '%s'", currentUser), dir, "edu_det", json);
+         exportQuery(esql, String.format("select * from Connection where userid = '%s'", currentUser), dir, "connections", json);
+         exportQuery(esql, String.format("select * from Message where senderid = '%s' or receiverid = '%s' order by msgid", currentUser, currentUser), dir, "messages", json);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Exports a whole table of every shard, one file per shard. For the
+    * --export option only, USR is written without the password column
+    **/
+   public static void ExportTable(String table, File dir, boolean json) throws Exception {
+      if (!table.matches("(?i)usr|work_ex|edu_det|message|connection")){
+         System.err.println("Unknown Table " + table + " (USR, Work_Ex, Edu_det, Message, Connection)");
+         return;
+      }
+      dir.mkdirs();
+      String columns = table.equalsIgnoreCase("usr") ? "userid, email, name, dateofbirth" : "*";
+      for (int s = 0; s < shards.size(); s++)
+         exportQuery(shards.get(s), "select " + columns + " from " + table, dir, table.toLowerCase() + (shards.size() > 1 ? "_shard" + s : ""), json);
+   }
+
+   private static void exportQuery(ProfNetwork esql, String query, File dir, String name, boolean json) throws Exception {
+      File file = new File(dir, name + (json ? ".json" : ".csv"));
+      long start = System.nanoTime();
+      ExportWriter out = esql.executeQueryAndExportResult(query, file, json);
+      double secs = Math.max(System.nanoTime() - start, 1) / 1e9;
+      System.out.println(String.format("%s: %d rows, %d bytes in %.2f s (%.0f rows/s, %.2f MB/s)",
+                         file.getPath(), out.rows(), out.bytes(), secs, out.rows() / secs, out.bytes() / secs / (1 << 20)));
+   }
+   // EXPORT ENDS
+
+   // FEED STARTS
+   /*
+    * Shows the newest jobs, degrees and friends of the user's connections
+    **/
+   public static void ViewFeed(ProfNetwork esql, String currentUser){
+      try{
+         List<ActivityFeed.Event> events = feed.read(currentUser, 20);
+         if (events.isEmpty()){
+            System.out.println("Nothing new from your connections");
+            return;
+         }
+         for (ActivityFeed.Event e : events)
+            System.out.println(e.createdAt + "\t" + directory.name(e.actorId) + " (" + e.actorId + ") " + e.detail);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+   // FEED ENDS
+
+   // STATEMENTS SHARED BY THE MENUS, THE BATCH MODE AND THE REPLAY DRIVER
+   static String friendsQuery(String userId){
+      return String.format("select * from Connection where status = 'Accept' AND userid ='%s'", userId);
+   }
+
+   static String friendIdsQuery(String userId){
+      return String.format("select C.connectionid from Connection C where userid = '%s' and status = 'Accept'", userId);
+   }
+
+   static String workExQuery(String userId){
+      return String.format("select * from Work_Ex where userid = '%s'", userId);
+   }
+
+   static String workExUpdateSql(String column, String value, String userId, String company, String role, String startDate){
+      return String.format("update Work_Ex set %s = '%s' where userid = '%s' AND company = '%s' AND role = '%s' AND startDate = '%s'", column, value, userId, company, role, startDate);
+   }
+
+   static String eduDetUpdateSql(String column, String value, String userId, String major, String degree){
+      return String.format("update Edu_det set %s = '%s' where userid = '%s' AND major = '%s' AND degree = '%s'", column, value, userId, major, degree);
+   }
+
+   static String receivedMessagesQuery(String userId){
+      return String.format("select * from Message where receiverid='%s' and status ='Delivered'", userId);
+   }
+
+   static String requestInsertSql(String userId, String connectionId){
+      return String.format("insert into connection (userid,connectionid,status) values ('%s','%s','Request')", userId, connectionId);
+   }
+
+   static String requestNotifySql(String receiver, String sender){
+      return String.format("NOTIFY friend_request, '%s,%s'", receiver, sender);
+   }
+
+   static String userUpdateSql(String column, String value, String userId){
+      return String.format("update usr set %s = '%s' where userid = '%s'", column, value, userId);
+   }
+
+   static String workExInsertSql(String userId, String company, String role, String location, String startDate, String endDate){
+      return String.format("insert into Work_Ex (userid, company, role, location, startDate, endDate) values ('%s','%s','%s','%s','%s','%s')", userId, company, role, location, startDate, endDate);
+   }
+
+   static String eduDetInsertSql(String userId, String institution, String major, String degree, String startDate, String endDate){
+      return String.format("insert into Edu_det (userid, instituitionName, major, degree, startDate, endDate) values ('%s','%s','%s','%s','%s','%s')", userId, institution, major, degree, startDate, endDate);
+   }
+
+   static String messageInsertSql(long msgId, String sender, String receiver, String contents){
+      return String.format("INSERT INTO Message (msgid,senderid,receiverid,contents,sendtime,deletestatus,status) values ( %d, '%s', '%s' , '%s',CURRENT_TIMESTAMP, 0, 'Delivered')", msgId, sender, receiver, contents);
+   }
+
 // Rest of the functions definition go in here
 
 }//end ProfNetwork
@@ -0,0 +1,94 @@
+/*
+ * Per user rate limiting
+ * =============================
+ *
+ * Token buckets keyed by user and operation type, used to keep a single
+ * user from flooding the write paths.
+ *
+ */
+
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps one token bucket per (user, operation). Each bucket is a
+ * single AtomicLong holding the theoretical arrival time of the next
+ * request (GCRA), so taking a token is one compare-and-set and needs no
+ * lock. Operations without a configured limit are always admitted.
+ *
+ */
+public class RateLimiter {
+
+   private static class Limit {
+      final long intervalNanos;   // time to refill one token
+      final long burstNanos;      // how far ahead of now a bucket may run
+
+      Limit(double perSecond, int burst) {
+         this.intervalNanos = (long) (1e9 / perSecond);
+         this.burstNanos = this.intervalNanos * Math.max(burst - 1, 0);
+      }
+   }//end Limit
+
+   private final Map<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+   private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+   private final Map<String, LongAdder> rejected = new ConcurrentHashMap<String, LongAdder>();
+
+   /**
+    * Sets the limit of an operation type for every user.
+    *
+    * @param op the operation type, e.g. "message"
+    * @param perSecond sustained rate allowed per user
+    * @param burst number of requests allowed back to back
+    */
+   public void limit(String op, double perSecond, int burst) {
+      limits.put(op, new Limit(perSecond, burst));
+      rejected.putIfAbsent(op, new LongAdder());
+   }//end limit
+
+   /**
+    * Takes a token from the bucket of the user for this operation.
+    *
+    * @param userId the user issuing the request
+    * @param op the operation type
+    * @return true if the request is admitted, false if it is rate limited
+    */
+   public boolean tryAcquire(String userId, String op) {
+      Limit limit = limits.get(op);
+      if (limit == null)
+         return true;
+      AtomicLong bucket = buckets.computeIfAbsent(userId.trim() + "|" + op, k -> new AtomicLong());
+      while (true) {
+         long now = System.nanoTime();
+         long tat = bucket.get();
+         long start = (tat == 0 || tat - now < 0) ? now : tat;
+         if (start - now > limit.burstNanos) {
+            rejected.get(op).increment();
+            return false;
+         }
+         if (bucket.compareAndSet(tat, start + limit.intervalNanos))
+            return true;
+      }
+   }//end tryAcquire
+
+   /**
+    * @return the number of rejected requests of an operation type
+    */
+   public long rejected(String op) {
+      LongAdder count = rejected.get(op);
+      return count == null ? 0 : count.sum();
+   }//end rejected
+
+   /**
+    * @return rejection counts of all limited operations, e.g. "message=3 request=0"
+    */
+   public String stats() {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, LongAdder> e : rejected.entrySet())
+         sb.append(sb.length() == 0 ? "" : " ").append(e.getKey()).append('=').append(e.getValue().sum());
+      return sb.toString();
+   }//end stats
+
+}//end RateLimiter
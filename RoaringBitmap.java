@@ -0,0 +1,317 @@
+/*
+ * Compressed bitmap
+ * =============================
+ *
+ * A set of non-negative ints for the facet search, stored the way Roaring
+ * bitmaps store them.
+ *
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * This class splits the ints by their high 16 bits into chunks of 65536
+ * values. A chunk with at most 4096 members is a sorted char array (2
+ * bytes per member), a fuller chunk is a 1024 word bitmap (8 KB whatever
+ * the count). So sparse and dense sets both stay small, and intersections
+ * work chunk by chunk with merges, lookups or word ANDs.
+ *
+ * Not thread safe, FacetIndex guards its bitmaps with a read/write lock.
+ *
+ */
+public class RoaringBitmap {
+
+   private static final int ARRAY_MAX = 4096;
+   private static final int WORDS = 1024;
+
+   // chunk i holds the values keys[i] << 16 | low, low in containers[i]
+   private char[] keys = new char[4];
+   private Object[] containers = new Object[4];   // char[] or long[]
+   private int[] cards = new int[4];
+   private int size = 0;
+
+   public void add(int x) {
+      char hi = (char) (x >>> 16);
+      char lo = (char) x;
+      int i = Arrays.binarySearch(keys, 0, size, hi);
+      if (i < 0) {
+         i = -i - 1;
+         insertChunk(i, hi, new char[4], 0);
+      }
+      if (containers[i] instanceof long[]) {
+         long[] bits = (long[]) containers[i];
+         long before = bits[lo >>> 6];
+         bits[lo >>> 6] |= 1L << lo;
+         if (before != bits[lo >>> 6])
+            cards[i]++;
+         return;
+      }
+      char[] arr = (char[]) containers[i];
+      int j = Arrays.binarySearch(arr, 0, cards[i], lo);
+      if (j >= 0)
+         return;
+      if (cards[i] == ARRAY_MAX) {
+         long[] bits = toBits(arr, cards[i]);
+         bits[lo >>> 6] |= 1L << lo;
+         containers[i] = bits;
+         cards[i]++;
+         return;
+      }
+      j = -j - 1;
+      if (cards[i] == arr.length)
+         containers[i] = arr = Arrays.copyOf(arr, Math.min(arr.length * 2, ARRAY_MAX));
+      System.arraycopy(arr, j, arr, j + 1, cards[i] - j);
+      arr[j] = lo;
+      cards[i]++;
+   }//end add
+
+   public void remove(int x) {
+      char hi = (char) (x >>> 16);
+      char lo = (char) x;
+      int i = Arrays.binarySearch(keys, 0, size, hi);
+      if (i < 0)
+         return;
+      if (containers[i] instanceof long[]) {
+         long[] bits = (long[]) containers[i];
+         long before = bits[lo >>> 6];
+         bits[lo >>> 6] &= ~(1L << lo);
+         if (before == bits[lo >>> 6])
+            return;
+         if (--cards[i] == ARRAY_MAX)
+            containers[i] = toArray(bits, cards[i]);
+         return;
+      }
+      char[] arr = (char[]) containers[i];
+      int j = Arrays.binarySearch(arr, 0, cards[i], lo);
+      if (j < 0)
+         return;
+      System.arraycopy(arr, j + 1, arr, j, cards[i] - j - 1);
+      if (--cards[i] == 0)
+         removeChunk(i);
+   }//end remove
+
+   public boolean contains(int x) {
+      char lo = (char) x;
+      int i = Arrays.binarySearch(keys, 0, size, (char) (x >>> 16));
+      if (i < 0)
+         return false;
+      if (containers[i] instanceof long[])
+         return (((long[]) containers[i])[lo >>> 6] & (1L << lo)) != 0;
+      return Arrays.binarySearch((char[]) containers[i], 0, cards[i], lo) >= 0;
+   }//end contains
+
+   public int cardinality() {
+      int n = 0;
+      for (int i = 0; i < size; i++)
+         n += cards[i];
+      return n;
+   }//end cardinality
+
+   public boolean isEmpty() {
+      return size == 0;
+   }//end isEmpty
+
+   /**
+    * @return a new bitmap with the values in both bitmaps
+    */
+   public RoaringBitmap and(RoaringBitmap other) {
+      RoaringBitmap result = new RoaringBitmap();
+      int i = 0, j = 0;
+      while (i < size && j < other.size) {
+         if (keys[i] < other.keys[j]) {
+            i++;
+         } else if (keys[i] > other.keys[j]) {
+            j++;
+         } else {
+            Object c = andChunk(containers[i], cards[i], other.containers[j], other.cards[j]);
+            int card = count(c);
+            if (card > 0)
+               result.insertChunk(result.size, keys[i], card > ARRAY_MAX ? c : shrink(c, card), card);
+            i++;
+            j++;
+         }
+      }
+      return result;
+   }//end and
+
+   /**
+    * @return the size of the intersection, without building it
+    */
+   public int andCardinality(RoaringBitmap other) {
+      int n = 0, i = 0, j = 0;
+      while (i < size && j < other.size) {
+         if (keys[i] < other.keys[j]) {
+            i++;
+         } else if (keys[i] > other.keys[j]) {
+            j++;
+         } else {
+            Object a = containers[i], b = other.containers[j];
+            if (a instanceof long[] && b instanceof long[]) {
+               long[] x = (long[]) a, y = (long[]) b;
+               for (int w = 0; w < WORDS; w++)
+                  n += Long.bitCount(x[w] & y[w]);
+            } else {
+               n += count(andChunk(a, cards[i], b, other.cards[j]));
+            }
+            i++;
+            j++;
+         }
+      }
+      return n;
+   }//end andCardinality
+
+   /**
+    * @return a new bitmap with the values in either bitmap
+    */
+   public RoaringBitmap or(RoaringBitmap other) {
+      RoaringBitmap result = new RoaringBitmap();
+      int i = 0, j = 0;
+      while (i < size || j < other.size) {
+         if (j >= other.size || (i < size && keys[i] < other.keys[j])) {
+            result.insertChunk(result.size, keys[i], copy(containers[i]), cards[i]);
+            i++;
+         } else if (i >= size || keys[i] > other.keys[j]) {
+            result.insertChunk(result.size, other.keys[j], copy(other.containers[j]), other.cards[j]);
+            j++;
+         } else {
+            long[] bits = containers[i] instanceof long[] ? ((long[]) containers[i]).clone() : toBits((char[]) containers[i], cards[i]);
+            orInto(bits, other.containers[j], other.cards[j]);
+            int card = count(bits);
+            result.insertChunk(result.size, keys[i], card > ARRAY_MAX ? bits : toArray(bits, card), card);
+            i++;
+            j++;
+         }
+      }
+      return result;
+   }//end or
+
+   /**
+    * @param limit the most values to return
+    * @return the smallest values of the bitmap, ascending
+    */
+   public int[] toArray(int limit) {
+      int[] out = new int[Math.min(limit, cardinality())];
+      int n = 0;
+      for (int i = 0; i < size && n < out.length; i++) {
+         int base = keys[i] << 16;
+         if (containers[i] instanceof long[]) {
+            long[] bits = (long[]) containers[i];
+            for (int w = 0; w < WORDS && n < out.length; w++) {
+               long word = bits[w];
+               while (word != 0 && n < out.length) {
+                  out[n++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+                  word &= word - 1;
+               }
+            }
+         } else {
+            char[] arr = (char[]) containers[i];
+            for (int k = 0; k < cards[i] && n < out.length; k++)
+               out[n++] = base | arr[k];
+         }
+      }
+      return out;
+   }//end toArray
+
+   private void insertChunk(int i, char key, Object container, int card) {
+      if (size == keys.length) {
+         keys = Arrays.copyOf(keys, size * 2);
+         containers = Arrays.copyOf(containers, size * 2);
+         cards = Arrays.copyOf(cards, size * 2);
+      }
+      System.arraycopy(keys, i, keys, i + 1, size - i);
+      System.arraycopy(containers, i, containers, i + 1, size - i);
+      System.arraycopy(cards, i, cards, i + 1, size - i);
+      keys[i] = key;
+      containers[i] = container;
+      cards[i] = card;
+      size++;
+   }//end insertChunk
+
+   private void removeChunk(int i) {
+      System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+      System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+      System.arraycopy(cards, i + 1, cards, i, size - i - 1);
+      containers[--size] = null;
+   }//end removeChunk
+
+   // the intersection of two chunks, a char[] (cardinality in its length) or a long[]
+   private static Object andChunk(Object a, int cardA, Object b, int cardB) {
+      if (a instanceof long[] && b instanceof long[]) {
+         long[] x = (long[]) a, y = (long[]) b, z = new long[WORDS];
+         for (int w = 0; w < WORDS; w++)
+            z[w] = x[w] & y[w];
+         return z;
+      }
+      if (a instanceof long[])
+         return andChunk(b, cardB, a, cardA);
+      char[] arr = (char[]) a;
+      char[] out = new char[Math.min(cardA, b instanceof long[] ? cardA : cardB)];
+      int n = 0;
+      if (b instanceof long[]) {
+         long[] bits = (long[]) b;
+         for (int k = 0; k < cardA; k++)
+            if ((bits[arr[k] >>> 6] & (1L << arr[k])) != 0)
+               out[n++] = arr[k];
+      } else {
+         char[] other = (char[]) b;
+         int i = 0, j = 0;
+         while (i < cardA && j < cardB) {
+            if (arr[i] < other[j]) i++;
+            else if (arr[i] > other[j]) j++;
+            else { out[n++] = arr[i]; i++; j++; }
+         }
+      }
+      return Arrays.copyOf(out, n);
+   }//end andChunk
+
+   private static void orInto(long[] bits, Object c, int card) {
+      if (c instanceof long[]) {
+         long[] other = (long[]) c;
+         for (int w = 0; w < WORDS; w++)
+            bits[w] |= other[w];
+      } else {
+         char[] arr = (char[]) c;
+         for (int k = 0; k < card; k++)
+            bits[arr[k] >>> 6] |= 1L << arr[k];
+      }
+   }//end orInto
+
+   private static int count(Object c) {
+      if (c instanceof char[])
+         return ((char[]) c).length;
+      int n = 0;
+      for (long word : (long[]) c)
+         n += Long.bitCount(word);
+      return n;
+   }//end count
+
+   private static Object shrink(Object c, int card) {
+      return c instanceof long[] ? toArray((long[]) c, card) : c;
+   }//end shrink
+
+   private static Object copy(Object c) {
+      return c instanceof long[] ? ((long[]) c).clone() : ((char[]) c).clone();
+   }//end copy
+
+   private static long[] toBits(char[] arr, int card) {
+      long[] bits = new long[WORDS];
+      for (int k = 0; k < card; k++)
+         bits[arr[k] >>> 6] |= 1L << arr[k];
+      return bits;
+   }//end toBits
+
+   private static char[] toArray(long[] bits, int card) {
+      char[] arr = new char[card];
+      int n = 0;
+      for (int w = 0; w < WORDS; w++) {
+         long word = bits[w];
+         while (word != 0) {
+            arr[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+            word &= word - 1;
+         }
+      }
+      return arr;
+   }//end toArray
+
+}//end RoaringBitmap
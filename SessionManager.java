@@ -0,0 +1,194 @@
+/*
+ * Session management
+ * =============================
+ *
+ * Salted password hashing and in-memory session tokens, so the expensive
+ * credential check happens once per login.
+ *
+ */
+
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * This class hashes passwords with salted PBKDF2 and keeps the sessions of
+ * logged in users in a concurrent table. Validating a session token is a
+ * hash lookup and never touches the database.
+ *
+ * Stored password format: pbkdf2$iterations$salt$hash (base64 salt/hash).
+ * Rows that still hold a plaintext password are accepted once and should be
+ * rehashed by the caller, see needsRehash.
+ *
+ */
+public class SessionManager {
+
+   private static final String PREFIX = "pbkdf2$";
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 256;
+   private static final int TOKEN_BYTES = 32;
+
+   // hashing cost, tune with -Dhash.iterations=<n>
+   private static final int ITERATIONS = Integer.getInteger("hash.iterations", 120000);
+
+   private static final SecureRandom random = new SecureRandom();
+
+   private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+   private final AtomicInteger created = new AtomicInteger();
+   private final long timeoutMillis;
+
+   private static class Session {
+      final String userId;
+      volatile long expiresAt;
+
+      Session(String userId, long expiresAt) {
+         this.userId = userId;
+         this.expiresAt = expiresAt;
+      }
+   }//end Session
+
+   /**
+    * Creates a new session table
+    *
+    * @param timeoutMillis idle time after which a session expires
+    */
+   public SessionManager(long timeoutMillis) {
+      this.timeoutMillis = timeoutMillis;
+   }//end SessionManager
+
+   /**
+    * Hashes a password with a fresh random salt.
+    *
+    * @param password the plaintext password
+    * @return the encoded hash to store in USR.password
+    */
+   public static String hashPassword(String password) {
+      byte[] salt = new byte[SALT_BYTES];
+      random.nextBytes(salt);
+      byte[] hash = pbkdf2(password, salt, ITERATIONS);
+      Base64.Encoder b64 = Base64.getEncoder();
+      return PREFIX + ITERATIONS + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(hash);
+   }//end hashPassword
+
+   /**
+    * Checks a password against the stored value.
+    *
+    * @param password the plaintext password entered by the user
+    * @param stored the value of USR.password
+    * @return true if the password matches
+    */
+   public static boolean verifyPassword(String password, String stored) {
+      if (password == null || stored == null)
+         return false;
+      stored = stored.trim();
+      if (!stored.startsWith(PREFIX))
+         // legacy plaintext row
+         return MessageDigest.isEqual(password.getBytes(), stored.getBytes());
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4)
+         return false;
+      try {
+         int iterations = Integer.parseInt(parts[1]);
+         byte[] salt = Base64.getDecoder().decode(parts[2]);
+         byte[] expected = Base64.getDecoder().decode(parts[3]);
+         return MessageDigest.isEqual(expected, pbkdf2(password, salt, iterations));
+      } catch (IllegalArgumentException e) {
+         return false;
+      }
+   }//end verifyPassword
+
+   /**
+    * @return true if the stored value is plaintext or uses a lower cost
+    *         than the current setting
+    */
+   public static boolean needsRehash(String stored) {
+      if (stored == null || !stored.trim().startsWith(PREFIX))
+         return true;
+      String[] parts = stored.trim().split("\\$");
+      try {
+         return parts.length != 4 || Integer.parseInt(parts[1]) < ITERATIONS;
+      } catch (NumberFormatException e) {
+         return true;
+      }
+   }//end needsRehash
+
+   /**
+    * Opens a session for an authenticated user.
+    *
+    * @param userId the user that logged in
+    * @return an opaque session token
+    */
+   public String create(String userId) {
+      // sweep expired sessions every so often instead of on each login
+      if ((created.incrementAndGet() & 1023) == 0)
+         purgeExpired();
+      byte[] raw = new byte[TOKEN_BYTES];
+      random.nextBytes(raw);
+      String token = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+      sessions.put(token, new Session(userId, System.currentTimeMillis() + timeoutMillis));
+      return token;
+   }//end create
+
+   /**
+    * Resolves a session token and extends its expiry.
+    *
+    * @param token the session token
+    * @return the user of the session or null if unknown or expired
+    */
+   public String validate(String token) {
+      if (token == null)
+         return null;
+      Session s = sessions.get(token);
+      if (s == null)
+         return null;
+      long now = System.currentTimeMillis();
+      if (s.expiresAt < now) {
+         sessions.remove(token, s);
+         return null;
+      }
+      s.expiresAt = now + timeoutMillis;
+      return s.userId;
+   }//end validate
+
+   /**
+    * Ends a session.
+    */
+   public void invalidate(String token) {
+      if (token != null)
+         sessions.remove(token);
+   }//end invalidate
+
+   /**
+    * @return the number of open sessions
+    */
+   public int size() {
+      return sessions.size();
+   }//end size
+
+   private void purgeExpired() {
+      long now = System.currentTimeMillis();
+      Iterator<Session> it = sessions.values().iterator();
+      while (it.hasNext())
+         if (it.next().expiresAt < now)
+            it.remove();
+   }//end purgeExpired
+
+   private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+      try {
+         KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+         SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+         return f.generateSecret(spec).getEncoded();
+      } catch (Exception e) {
+         throw new IllegalStateException("Password hashing unavailable: " + e.getMessage());
+      }
+   }//end pbkdf2
+
+}//end SessionManager
@@ -0,0 +1,187 @@
+/*
+ * userId sharding
+ * =============================
+ *
+ * Routes the rows of a user to one of several Postgres databases and runs
+ * cross-shard reads as parallel scatter/gather.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class owns one ProfNetwork connection per shard database. Every
+ * user lives on the shard picked by a hash of the userId, and so do the
+ * rows that belong to the user:
+ *
+ *    USR, Work_Ex, Edu_det   : the shard of userId
+ *    Connection              : the shard of userId (each side of a
+ *                              friendship is its own row)
+ *    Message                 : the shard of receiverId (inbox) and a copy
+ *                              on the shard of senderId (sent) when the
+ *                              two differ
+ *
+ * All shards share the same schema. Message ids are allocated from the
+ * sequence of shard 0 so they stay unique across shards.
+ *
+ * There is no transaction across shards. The menus write the two rows of a
+ * friendship or a message through ProfNetwork.bothSides, which undoes the
+ * first side when the second fails and reports a change it could not
+ * undo. The batch mode reports failed chunks without undoing (BatchRunner).
+ *
+ */
+public class ShardRouter {
+
+   private final List<ProfNetwork> shards;
+   private final ExecutorService pool;
+
+   /**
+    * @param shards one connection per shard, the order fixes the placement
+    */
+   public ShardRouter(List<ProfNetwork> shards) {
+      this.shards = shards;
+      this.pool = Executors.newFixedThreadPool(shards.size(), r -> {
+         Thread t = new Thread(r, "shard-gather");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardRouter
+
+   /**
+    * Connects to every database of a comma separated list.
+    *
+    * @param dbnames e.g. "profnet0,profnet1,profnet2"
+    * @return the router over those databases
+    * @throws java.sql.SQLException when a connection fails
+    */
+   public static ShardRouter connect(String dbnames, String dbport, String user, String passwd) throws SQLException {
+      List<ProfNetwork> shards = new ArrayList<ProfNetwork>();
+      for (String dbname : dbnames.split(","))
+         shards.add(new ProfNetwork(dbname.trim(), dbport, user, passwd));
+      return new ShardRouter(shards);
+   }//end connect
+
+   /**
+    * @return the number of shards
+    */
+   public int size() {
+      return shards.size();
+   }//end size
+
+   public ProfNetwork get(int shard) {
+      return shards.get(shard);
+   }//end get
+
+   /**
+    * Placement of a user. FNV-1a over the UTF-8 bytes of the trimmed id, so
+    * the result never depends on the JVM.
+    *
+    * @return the shard number of the user
+    */
+   public int shardOf(String userId) {
+      int h = 0x811c9dc5;
+      for (byte b : userId.trim().getBytes(StandardCharsets.UTF_8)) {
+         h ^= (b & 0xff);
+         h *= 0x01000193;
+      }
+      return Math.floorMod(h, shards.size());
+   }//end shardOf
+
+   /**
+    * @return the connection of the shard holding the user
+    */
+   public ProfNetwork forUser(String userId) {
+      return shards.get(shardOf(userId));
+   }//end forUser
+
+   /**
+    * Runs a query on every shard in parallel and concatenates the results
+    * in shard order.
+    *
+    * @param query the input query string
+    * @return the rows of all shards
+    * @throws java.sql.SQLException when the query fails on any shard
+    */
+   public List<List<String>> queryAll(String query) throws SQLException {
+      if (shards.size() == 1)
+         return shards.get(0).executeQueryAndReturnResult(query);
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      for (ProfNetwork shard : shards)
+         parts.add(pool.submit(() -> shard.executeQueryAndReturnResult(query)));
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (Future<List<List<String>>> part : parts)
+         result.addAll(gather(part));
+      return result;
+   }//end queryAll
+
+   /**
+    * Runs a different query on some of the shards in parallel, e.g. each
+    * with the ids of the users it holds.
+    *
+    * @param queries shard number -> query
+    * @return the rows of all those shards, in shard order
+    * @throws java.sql.SQLException when a query fails
+    */
+   public List<List<String>> queryEach(Map<Integer, String> queries) throws SQLException {
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      for (int s = 0; s < shards.size(); s++) {
+         String query = queries.get(s);
+         if (query != null) {
+            ProfNetwork shard = shards.get(s);
+            parts.add(pool.submit(() -> shard.executeQueryAndReturnResult(query)));
+         }
+      }
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (Future<List<List<String>>> part : parts)
+         result.addAll(gather(part));
+      return result;
+   }//end queryEach
+
+   /**
+    * Runs an update statement on every shard in parallel.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when the statement fails on any shard
+    */
+   public void updateAll(String sql) throws SQLException {
+      List<Future<Object>> parts = new ArrayList<Future<Object>>();
+      for (ProfNetwork shard : shards)
+         parts.add(pool.submit(() -> { shard.executeUpdate(sql); return null; }));
+      for (Future<Object> part : parts)
+         gather(part);
+   }//end updateAll
+
+   /**
+    * Closes every shard connection.
+    */
+   public void cleanup() {
+      pool.shutdownNow();
+      for (ProfNetwork shard : shards)
+         shard.cleanup();
+   }//end cleanup
+
+   private static <T> T gather(Future<T> part) throws SQLException {
+      try {
+         return part.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a shard");
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause());
+      }
+   }//end gather
+
+}//end ShardRouter
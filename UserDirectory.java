@@ -0,0 +1,446 @@
+/*
+ * Off-heap user directory
+ * =============================
+ *
+ * Memory mapped userId -> name/email lookup table used by the listing
+ * screens so they do not have to join USR just to print a name.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This class keeps a compact copy of USR(userId, name, email) in a memory
+ * mapped file. Records are fixed width and located through an open
+ * addressing (linear probing) index that lives in the same file, so the
+ * data never sits on the Java heap and the file itself is the snapshot
+ * used for a warm start.
+ *
+ * File layout:
+ *    header  : magic, version, capacity, count, shards, one refresh mark
+ *              per shard (HEADER bytes)
+ *    index   : capacity ints, record number + 1 or 0 for an empty slot
+ *    records : capacity fixed width records (userId, name, email)
+ *
+ * One process at a time owns the snapshot, through a lock on the file
+ * "<snapshot>.lock". Another process (a batch job next to a running
+ * session) gets a private directory in a temporary file instead, so two
+ * processes never append to or resize the same mapping.
+ *
+ * Every USR row carries the id of the transaction that last wrote it
+ * (USR.version, see migrations/010_usr_version.sql). A refresh reads the
+ * rows of each shard with a version at or above the shard's mark, then
+ * moves the mark to the oldest transaction that was still running when
+ * the refresh started. A row committed late is read by the next refresh,
+ * a few rows are read twice. sync refreshes once, later lookups refresh
+ * at most every -Ddirectory.refreshMillis (default 5000), so renames and
+ * new users of other processes show up while this one runs. A userId
+ * that is still unknown is read from its USR row on first lookup.
+ *
+ */
+public class UserDirectory {
+
+   private static final int MAGIC = 0x55534452;   // "USDR"
+   private static final int VERSION = 2;
+   private static final int MAX_SHARDS = 64;
+   private static final int HEADER = 24 + 8 * MAX_SHARDS;
+   private static final long REFRESH_MILLIS = Long.getLong("directory.refreshMillis", 5000L);
+
+   // column widths follow create_table.sql.txt, email is truncated
+   private static final int ID_WIDTH = 30;
+   private static final int NAME_WIDTH = 50;
+   private static final int EMAIL_WIDTH = 100;
+   private static final int RECORD = ID_WIDTH + NAME_WIDTH + EMAIL_WIDTH;
+
+   private static final int DEFAULT_CAPACITY = 1 << 16;
+
+   private final File file;
+   private FileChannel lockChannel;
+   private FileLock lock;
+   private ShardRouter source;
+   private boolean versioned = true;
+   private volatile long refreshedAt = 0;
+   private final Object refreshing = new Object();
+   private RandomAccessFile raf;
+   private MappedByteBuffer buf;
+   private int capacity;
+   private int count;
+
+   private UserDirectory(File file) {
+      this.file = file;
+   }//end UserDirectory
+
+   /**
+    * Opens the directory snapshot, creating an empty one when the file
+    * does not exist yet. When another process owns the snapshot the
+    * directory starts empty in a temporary file.
+    *
+    * @param file the snapshot file
+    * @return the opened directory
+    * @throws java.io.IOException when the file can not be mapped
+    */
+   public static UserDirectory open(File file) throws IOException {
+      FileChannel lockChannel = new RandomAccessFile(file.getPath() + ".lock", "rw").getChannel();
+      FileLock lock = lockChannel.tryLock();
+      if (lock == null) {
+         lockChannel.close();
+         lockChannel = null;
+         file = File.createTempFile(file.getName(), ".tmp");
+         file.deleteOnExit();
+      }
+      UserDirectory dir = new UserDirectory(file);
+      dir.lockChannel = lockChannel;
+      dir.lock = lock;
+      if (file.exists() && file.length() >= HEADER) {
+         dir.map(file, -1);
+         if (dir.buf.getInt(0) != MAGIC || dir.buf.getInt(4) != VERSION) {
+            // unknown snapshot, start over
+            dir.unmap();
+            file.delete();
+            dir.map(file, DEFAULT_CAPACITY);
+         }
+      } else {
+         dir.map(file, DEFAULT_CAPACITY);
+      }
+      return dir;
+   }//end open
+
+   /**
+    * Brings the snapshot up to date with the USR tables of all shards.
+    * Lookups refresh from these shards and read unknown users from them
+    * afterwards.
+    *
+    * @throws java.sql.SQLException when USR can not be read
+    */
+   public void sync(ShardRouter shards) throws SQLException {
+      if (shards.size() > MAX_SHARDS)
+         throw new SQLException("The user directory supports at most " + MAX_SHARDS + " shards");
+      synchronized (this) {
+         if (buf.getInt(16) != shards.size()) {
+            clear();
+            buf.putInt(16, shards.size());
+         }
+         source = shards;
+      }
+      try {
+         refresh();
+      } catch (SQLException e) {
+         // USR.version missing, names stay as loaded until the migration is applied
+         System.err.println("User directory not refreshed, apply migrations/010_usr_version.sql: " + e.getMessage());
+         versioned = false;
+         if (size() == 0)
+            for (int s = 0; s < shards.size(); s++)
+               load(shards.get(s));
+      }
+   }//end sync
+
+   // reads the rows written since the marks, see the class comment
+   private void refresh() throws SQLException {
+      synchronized (refreshing) {
+         refreshedAt = System.currentTimeMillis();
+         long[] xmin = new long[source.size()];
+         boolean recreated = false;
+         for (int s = 0; s < xmin.length; s++) {
+            xmin[s] = Long.parseLong(source.get(s).executeQueryAndReturnResult(
+               "select txid_snapshot_xmin(txid_current_snapshot())").get(0).get(0).trim());
+            recreated |= xmin[s] < mark(s);
+         }
+         // transaction ids never go back, unless the database was created again
+         if (recreated)
+            synchronized (this) {
+               clear();
+            }
+         for (int s = 0; s < xmin.length; s++) {
+            List<List<String>> rows = source.get(s).executeQueryAndReturnResult(String.format(
+               "select userId, name, email from USR where version >= %d", mark(s)));
+            for (List<String> row : rows)
+               put(row.get(0), row.get(1), row.get(2));
+            synchronized (this) {
+               buf.putLong(markOffset(s), xmin[s]);
+            }
+         }
+         synchronized (this) {
+            buf.force();
+         }
+      }
+   }//end refresh
+
+   private void refreshIfDue() {
+      if (source == null || !versioned || System.currentTimeMillis() - refreshedAt < REFRESH_MILLIS)
+         return;
+      try {
+         refresh();
+      } catch (SQLException e) {
+         // the names stay as they are until the next refresh
+      }
+   }//end refreshIfDue
+
+   private synchronized long mark(int shard) {
+      return buf.getLong(markOffset(shard));
+   }//end mark
+
+   // forgets every user and mark, the next refresh reads USR again
+   private void clear() {
+      for (int slot = 0; slot < capacity; slot++)
+         buf.putInt(indexOffset(slot), 0);
+      for (int s = 0; s < MAX_SHARDS; s++)
+         buf.putLong(markOffset(s), 0);
+      count = 0;
+      buf.putInt(12, 0);
+   }//end clear
+
+   /**
+    * Fills the directory from the USR table of one database.
+    *
+    * @param esql the database the users are read from
+    * @throws java.sql.SQLException when the query fails
+    */
+   public synchronized void load(ProfNetwork esql) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult("select userId, name, email from USR");
+      for (List<String> row : rows)
+         put(row.get(0), row.get(1), row.get(2));
+      buf.force();
+   }//end load
+
+   /**
+    * @return the number of users in the directory
+    */
+   public synchronized int size() {
+      return count;
+   }//end size
+
+   /**
+    * Adds a user or overwrites the name and email of an existing one.
+    * A null name or email leaves the stored value unchanged.
+    */
+   public synchronized void put(String userId, String name, String email) {
+      if (userId == null)
+         return;
+      userId = userId.trim();
+      int slot = find(userId);
+      int rec;
+      if (buf.getInt(indexOffset(slot)) == 0) {
+         if ((count + 1) * 4 > capacity * 3) {
+            grow();
+            slot = find(userId);
+         }
+         rec = count++;
+         buf.putInt(indexOffset(slot), rec + 1);
+         buf.putInt(12, count);
+         writeField(recordOffset(rec), ID_WIDTH, userId);
+         writeField(recordOffset(rec) + ID_WIDTH, NAME_WIDTH, null);
+         writeField(recordOffset(rec) + ID_WIDTH + NAME_WIDTH, EMAIL_WIDTH, null);
+      } else {
+         rec = buf.getInt(indexOffset(slot)) - 1;
+      }
+      if (name != null)
+         writeField(recordOffset(rec) + ID_WIDTH, NAME_WIDTH, name.trim());
+      if (email != null)
+         writeField(recordOffset(rec) + ID_WIDTH + NAME_WIDTH, EMAIL_WIDTH, email.trim());
+   }//end put
+
+   public void updateName(String userId, String name) {
+      put(userId, name, null);
+   }//end updateName
+
+   public void updateEmail(String userId, String email) {
+      put(userId, null, email);
+   }//end updateEmail
+
+   /**
+    * @return the name of the user or null if unknown
+    */
+   public String name(String userId) {
+      int rec = resolve(userId);
+      synchronized (this) {
+         return rec < 0 ? null : readField(recordOffset(rec) + ID_WIDTH, NAME_WIDTH);
+      }
+   }//end name
+
+   /**
+    * @return the email of the user or null if unknown
+    */
+   public String email(String userId) {
+      int rec = resolve(userId);
+      synchronized (this) {
+         return rec < 0 ? null : readField(recordOffset(rec) + ID_WIDTH + NAME_WIDTH, EMAIL_WIDTH);
+      }
+   }//end email
+
+   /**
+    * Flushes the snapshot to disk and releases the file.
+    */
+   public synchronized void close() {
+      unmap();
+      try {
+         if (lock != null)
+            lock.release();
+         if (lockChannel != null)
+            lockChannel.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+      lock = null;
+      lockChannel = null;
+   }//end close
+
+   // the lock stays held while the file is replaced by grow
+   private void unmap() {
+      try {
+         if (buf != null)
+            buf.force();
+         if (raf != null)
+            raf.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+      buf = null;
+      raf = null;
+   }//end unmap
+
+   // record number of the user, read from USR when the directory misses it
+   private int resolve(String userId) {
+      refreshIfDue();
+      ShardRouter from;
+      synchronized (this) {
+         int rec = lookup(userId);
+         if (rec >= 0 || source == null || userId == null)
+            return rec;
+         from = source;
+      }
+      try {
+         String id = userId.trim().replace("'", "''");
+         List<List<String>> rows = from.forUser(id).executeQueryAndReturnResult(String.format(
+            "select userId, name, email from USR where userId = '%s'", id));
+         if (rows.isEmpty())
+            return -1;
+         put(rows.get(0).get(0), rows.get(0).get(1), rows.get(0).get(2));
+      } catch (SQLException e) {
+         return -1;
+      }
+      synchronized (this) {
+         return lookup(userId);
+      }
+   }//end resolve
+
+   private int lookup(String userId) {
+      if (userId == null)
+         return -1;
+      int slot = find(userId.trim());
+      return buf.getInt(indexOffset(slot)) - 1;
+   }//end lookup
+
+   // returns the slot holding userId or the first empty slot of its probe chain
+   private int find(String userId) {
+      byte[] key = userId.getBytes(StandardCharsets.UTF_8);
+      int h = userId.hashCode();
+      h ^= (h >>> 16);
+      int slot = (h & 0x7fffffff) % capacity;
+      while (true) {
+         int rec = buf.getInt(indexOffset(slot)) - 1;
+         if (rec < 0 || keyEquals(recordOffset(rec), key))
+            return slot;
+         slot = (slot + 1) % capacity;
+      }
+   }//end find
+
+   private boolean keyEquals(int offset, byte[] key) {
+      if (key.length > ID_WIDTH)
+         return false;
+      for (int i = 0; i < key.length; i++)
+         if (buf.get(offset + i) != key[i])
+            return false;
+      return key.length == ID_WIDTH || buf.get(offset + key.length) == 0;
+   }//end keyEquals
+
+   private void writeField(int offset, int width, String value) {
+      byte[] b = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+      int len = Math.min(b.length, width);
+      // do not cut a multi byte character in half
+      while (len < b.length && len > 0 && (b[len] & 0xc0) == 0x80)
+         len--;
+      for (int i = 0; i < width; i++)
+         buf.put(offset + i, i < len ? b[i] : 0);
+   }//end writeField
+
+   private String readField(int offset, int width) {
+      byte[] b = new byte[width];
+      int len = 0;
+      while (len < width && (b[len] = buf.get(offset + len)) != 0)
+         len++;
+      return len == 0 ? null : new String(b, 0, len, StandardCharsets.UTF_8);
+   }//end readField
+
+   private int indexOffset(int slot) {
+      return HEADER + slot * 4;
+   }//end indexOffset
+
+   private int markOffset(int shard) {
+      return 24 + shard * 8;
+   }//end markOffset
+
+   private int recordOffset(int rec) {
+      return HEADER + capacity * 4 + rec * RECORD;
+   }//end recordOffset
+
+   // maps the file, a negative capacity keeps the one stored in the header
+   private void map(File f, int newCapacity) throws IOException {
+      raf = new RandomAccessFile(f, "rw");
+      boolean fresh = newCapacity > 0;
+      if (!fresh) {
+         raf.seek(8);
+         newCapacity = raf.readInt();
+      }
+      capacity = newCapacity;
+      long length = HEADER + (long) capacity * (4 + RECORD);
+      buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      if (fresh) {
+         buf.putInt(0, MAGIC);
+         buf.putInt(4, VERSION);
+         buf.putInt(8, capacity);
+         buf.putInt(12, 0);
+         buf.putInt(16, 0);
+         for (int s = 0; s < MAX_SHARDS; s++)
+            buf.putLong(markOffset(s), 0);
+      }
+      count = buf.getInt(12);
+   }//end map
+
+   // doubles the capacity by rewriting the records into a new snapshot
+   private void grow() {
+      try {
+         File tmp = new File(file.getPath() + ".tmp");
+         tmp.delete();
+         UserDirectory bigger = new UserDirectory(file);
+         bigger.map(tmp, capacity * 2);
+         // shard count and refresh marks
+         for (int off = 16; off < HEADER; off += 4)
+            bigger.buf.putInt(off, buf.getInt(off));
+         for (int rec = 0; rec < count; rec++) {
+            int off = recordOffset(rec);
+            bigger.put(readField(off, ID_WIDTH),
+                       readField(off + ID_WIDTH, NAME_WIDTH),
+                       readField(off + ID_WIDTH + NAME_WIDTH, EMAIL_WIDTH));
+         }
+         bigger.unmap();
+         unmap();
+         if (!file.delete() || !tmp.renameTo(file))
+            throw new IOException("Unable to replace " + file);
+         map(file, -1);
+      } catch (IOException e) {
+         throw new IllegalStateException("User directory resize failed: " + e.getMessage());
+      }
+   }//end grow
+
+}//end UserDirectory
@@ -0,0 +1,367 @@
+/*
+ * Workload replay
+ * =============================
+ *
+ * Simulates many concurrent users walking through the flows of the menus
+ * against a local Postgres, to find the number of users the application
+ * can carry.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class runs every simulated user on its own virtual thread. A user
+ * logs in, then repeatedly picks an operation from the mix, runs the
+ * statements of the corresponding menu flow and sleeps for an exponential
+ * think time:
+ *
+ *    login    : LogIn (password check and session)
+ *    friends  : Friends (friend list)
+ *    fof      : viewFriendsOfFriends (friend list of a friend, with names)
+ *    workex   : UpdateWorkExp (list, end date update)
+ *    message  : NewMessage (rate limit, msgId, inbox and sent copies)
+ *    inbox    : viewRecievedMessage (delivered messages)
+ *
+ * The flows go through the same statements, limiters and admission control
+ * as the menus, only the prompts and the printing are left out. Users are
+ * run in stages of growing size; every stage reports throughput and the
+ * p50/p95/p99/p999 latency per operation at a fixed interval, and a stage
+ * summary at the end.
+ *
+ * Latency includes the wait in the admission queue, a shed statement
+ * counts as an error and a rate limited message as rejected. The login
+ * only checks the password, it never rehashes it, so a replay leaves the
+ * USR rows as they were.
+ *
+ */
+public class WorkloadDriver {
+
+   private static final String[] OPS = { "login", "friends", "fof", "workex", "message", "inbox" };
+   private static final String DEFAULT_MIX = "login=2,friends=15,fof=10,workex=5,message=20,inbox=48";
+
+   private static class Op {
+      final String name;
+      final AtomicReference<LatencyHistogram> interval = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+      LatencyHistogram stage = new LatencyHistogram();
+      final LongAdder errors = new LongAdder();
+      final LongAdder rejected = new LongAdder();
+      // writer/reader phaser: a recording counts in on start and out on the
+      // end counter of its phase, the report waits for the old phase to drain
+      private final AtomicLong start = new AtomicLong();
+      private final AtomicLong evenEnd = new AtomicLong();
+      private final AtomicLong oddEnd = new AtomicLong(Long.MIN_VALUE);
+
+      Op(String name) {
+         this.name = name;
+      }
+
+      void record(long nanos) {
+         long phase = start.getAndIncrement();
+         try {
+            interval.get().record(nanos);
+         } finally {
+            (phase < 0 ? oddEnd : evenEnd).incrementAndGet();
+         }
+      }//end record
+
+      /*
+       * Swaps in an empty interval histogram
+       * @return the old one, once no recording into it is still running
+       **/
+      LatencyHistogram swap() {
+         LatencyHistogram old = interval.getAndSet(new LatencyHistogram());
+         boolean nextEven = start.get() < 0;
+         long first = nextEven ? 0 : Long.MIN_VALUE;
+         (nextEven ? evenEnd : oddEnd).set(first);
+         long started = start.getAndSet(first);
+         AtomicLong ended = nextEven ? oddEnd : evenEnd;
+         while (ended.get() != started)
+            Thread.yield();
+         return old;
+      }//end swap
+   }//end Op
+
+   private static class User {
+      final String userId;
+      final String password;
+      final ShardRouter router;
+      String session = null;
+      List<String> friends = Collections.emptyList();
+
+      User(String userId, String password, ShardRouter router) {
+         this.userId = userId;
+         this.password = password;
+         this.router = router;
+      }
+   }//end User
+
+   private final List<ShardRouter> routers;
+   private final List<String[]> accounts;
+   private final Map<String, Op> ops = new LinkedHashMap<String, Op>();
+   private final int[] weights = new int[OPS.length];
+   private final int totalWeight;
+   private final long thinkMillis;
+   private volatile boolean running = false;
+
+   private WorkloadDriver(List<ShardRouter> routers, List<String[]> accounts, String mix, long thinkMillis) {
+      this.routers = routers;
+      this.accounts = accounts;
+      this.thinkMillis = thinkMillis;
+      for (String name : OPS)
+         ops.put(name, new Op(name));
+      int total = 0;
+      for (String part : mix.split(",")) {
+         String[] kv = part.split("=");
+         int i = Arrays.asList(OPS).indexOf(kv[0].trim());
+         if (i < 0 || kv.length != 2)
+            throw new IllegalArgumentException("Unknown operation in mix: " + part);
+         weights[i] = Integer.parseInt(kv[1].trim());
+         total += weights[i];
+      }
+      if (total <= 0)
+         throw new IllegalArgumentException("Empty operation mix: " + mix);
+      this.totalWeight = total;
+   }//end WorkloadDriver
+
+   /**
+    * Runs one stage per user count and prints the latency reports.
+    *
+    * Settings: -Dreplay.connections connections per shard shared by the
+    * users (default 8), -Dreplay.reportSeconds report interval (default 5),
+    * -Dreplay.password password of users whose stored password is hashed.
+    * Users with a plaintext password log in with it.
+    *
+    * @param stages comma separated user counts, e.g. "50,100,200,400"
+    * @param seconds length of every stage
+    * @param mix weights of the operations, e.g. "inbox=50,message=50"
+    * @param thinkMillis mean think time between two operations of a user
+    * @throws java.lang.Exception when the users can not be loaded
+    */
+   public static void run(ShardRouter shards, String dbnames, String dbport, String user,
+                          String stages, int seconds, String mix, long thinkMillis) throws Exception {
+      int most = 0;
+      for (String stage : stages.split(","))
+         most = Math.max(most, Integer.parseInt(stage.trim()));
+
+      List<String[]> accounts = new ArrayList<String[]>();
+      String[] hashed = null;
+      for (List<String> row : shards.queryAll(String.format("select userid, password from USR limit %d", most))) {
+         String[] account = new String[] { row.get(0).trim(), row.get(1) == null ? "" : row.get(1).trim() };
+         accounts.add(account);
+         if (account[1].startsWith("pbkdf2$"))
+            hashed = account;
+      }
+      if (accounts.isEmpty())
+         throw new SQLException("No users to replay");
+      // every login of a hashed user would fail, stop before the first stage
+      if (hashed != null) {
+         if (System.getProperty("replay.password") == null)
+            throw new IllegalArgumentException("Passwords are hashed, set -Dreplay.password");
+         if (!ProfNetwork.checkPassword(shards, hashed[0], password(hashed[1])))
+            throw new IllegalArgumentException("-Dreplay.password does not match the password of " + hashed[0]);
+      }
+      Collections.shuffle(accounts);
+
+      List<ShardRouter> routers = new ArrayList<ShardRouter>();
+      for (int c = Integer.getInteger("replay.connections", 8); c > 0; c--)
+         routers.add(ShardRouter.connect(dbnames, dbport, user, ""));
+      WorkloadDriver driver = new WorkloadDriver(routers, accounts, mix == null ? DEFAULT_MIX : mix, thinkMillis);
+      try {
+         List<String> summary = new ArrayList<String>();
+         for (String stage : stages.split(","))
+            summary.add(driver.stage(Integer.parseInt(stage.trim()), seconds));
+         System.out.println("\nusers\tops/s\terrors\trejected\tall operations");
+         for (String line : summary)
+            System.out.println(line);
+      } finally {
+         for (ShardRouter router : routers)
+            router.cleanup();
+      }
+   }//end run
+
+   private String stage(int users, int seconds) throws InterruptedException {
+      for (Op op : ops.values()) {
+         op.interval.set(new LatencyHistogram());
+         op.stage = new LatencyHistogram();
+         op.errors.reset();
+         op.rejected.reset();
+      }
+      System.out.println(String.format("\n--- %d users, %d s, think time %d ms ---", users, seconds, thinkMillis));
+
+      running = true;
+      ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+      for (int i = 0; i < users; i++) {
+         String[] account = accounts.get(i % accounts.size());
+         User u = new User(account[0], password(account[1]), routers.get(i % routers.size()));
+         pool.execute(() -> walk(u));
+      }
+
+      long reportMillis = Integer.getInteger("replay.reportSeconds", 5) * 1000L;
+      long start = System.currentTimeMillis();
+      long end = start + seconds * 1000L;
+      long last = start;
+      while (System.currentTimeMillis() < end) {
+         Thread.sleep(Math.min(reportMillis, Math.max(end - System.currentTimeMillis(), 1)));
+         long now = System.currentTimeMillis();
+         report(now - start, now - last);
+         last = now;
+      }
+      running = false;
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+      // operations that ended after the last report
+      for (Op op : ops.values())
+         op.stage.add(op.swap());
+
+      LatencyHistogram all = new LatencyHistogram();
+      long errors = 0, rejected = 0;
+      System.out.println(String.format("stage total, %d users:", users));
+      for (Op op : ops.values()) {
+         all.add(op.stage);
+         errors += op.errors.sum();
+         rejected += op.rejected.sum();
+         if (op.stage.count() > 0)
+            System.out.println(String.format("   %-8s n=%-8d %8.1f ops/s  %s",
+               op.name, op.stage.count(), op.stage.count() / (double) seconds, op.stage.summary()));
+      }
+      return String.format("%d\t%.1f\t%d\t%d\t%s", users, all.count() / (double) seconds, errors, rejected, all.summary());
+   }//end stage
+
+   private void report(long elapsedMillis, long intervalMillis) {
+      for (Op op : ops.values()) {
+         LatencyHistogram h = op.swap();
+         op.stage.add(h);
+         if (h.count() == 0)
+            continue;
+         System.out.println(String.format("%6.1fs %-8s n=%-7d %8.1f ops/s  %s err=%d rej=%d",
+            elapsedMillis / 1000.0, op.name, h.count(), h.count() * 1000.0 / Math.max(intervalMillis, 1),
+            h.summary(), op.errors.sum(), op.rejected.sum()));
+      }
+   }//end report
+
+   // one simulated user, runs until the stage ends
+   private void walk(User u) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      try {
+         // spread the logins of a stage over one think time
+         Thread.sleep(random.nextLong(Math.max(thinkMillis, 1)));
+         time(ops.get("login"), u);
+         while (running) {
+            time(pick(random), u);
+            Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * thinkMillis));
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end walk
+
+   private Op pick(ThreadLocalRandom random) {
+      int r = random.nextInt(totalWeight);
+      for (int i = 0; i < OPS.length; i++) {
+         r -= weights[i];
+         if (r < 0)
+            return ops.get(OPS[i]);
+      }
+      return ops.get(OPS[OPS.length - 1]);
+   }//end pick
+
+   private void time(Op op, User u) {
+      long start = System.nanoTime();
+      try {
+         if (!op.name.equals("login") && (u.session == null || ProfNetwork.sessions.validate(u.session) == null))
+            perform("login", u);
+         if (!perform(op.name, u)) {
+            op.rejected.increment();
+            return;
+         }
+      } catch (Exception e) {
+         op.errors.increment();
+         return;
+      }
+      op.record(System.nanoTime() - start);
+   }//end time
+
+   /*
+    * The statements of one menu flow
+    * @return false when the operation was rejected by a limit
+    **/
+   private boolean perform(String op, User u) throws SQLException {
+      ProfNetwork home = u.router.forUser(u.userId);
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      switch (op) {
+         case "login":
+            if (u.session != null)
+               ProfNetwork.sessions.invalidate(u.session);
+            u.session = null;
+            if (!ProfNetwork.checkPassword(u.router, u.userId, u.password))
+               throw new SQLException("Login failed for " + u.userId);
+            u.session = ProfNetwork.sessions.create(u.userId);
+            return true;
+         case "friends": {
+            List<String> friends = new ArrayList<String>();
+            for (List<String> row : home.executeQueryAndReturnResult(ProfNetwork.friendsQuery(u.userId)))
+               friends.add(row.get(1).trim());
+            u.friends = friends;
+            return true;
+         }
+         case "fof": {
+            if (u.friends.isEmpty())
+               return perform("friends", u);
+            String friend = u.friends.get(random.nextInt(u.friends.size()));
+            for (List<String> row : u.router.forUser(friend).executeQueryAndReturnResult(ProfNetwork.friendIdsQuery(friend)))
+               ProfNetwork.directory.name(row.get(0));
+            return true;
+         }
+         case "workex": {
+            List<List<String>> jobs = home.executeQueryAndReturnResult(ProfNetwork.workExQuery(u.userId));
+            if (jobs.isEmpty())
+               return true;
+            // rewrites the end date it already has, the data stays as loaded
+            List<String> job = jobs.get(random.nextInt(jobs.size()));
+            String company = job.get(1).trim(), role = job.get(2).trim(), startDate = job.get(4);
+            if (job.get(5) != null)
+               home.executeUpdate(ProfNetwork.workExUpdateSql("endDate", job.get(5), u.userId, company, role, startDate));
+            return true;
+         }
+         case "message": {
+            if (!ProfNetwork.limiter.tryAcquire(u.userId, "message"))
+               return false;
+            String receiver = u.friends.isEmpty()
+               ? accounts.get(random.nextInt(accounts.size()))[0]
+               : u.friends.get(random.nextInt(u.friends.size()));
+            String query = ProfNetwork.messageInsertSql(ProfNetwork.msgIds.next(), u.userId, receiver, "replay");
+            u.router.forUser(receiver).executeUpdate(query);
+            if (u.router.shardOf(receiver) != u.router.shardOf(u.userId))
+               home.executeUpdate(query);
+            return true;
+         }
+         case "inbox":
+            home.executeQueryAndReturnResult(ProfNetwork.receivedMessagesQuery(u.userId));
+            return true;
+         default:
+            throw new IllegalArgumentException(op);
+      }
+   }//end perform
+
+   private static String password(String stored) {
+      return stored.startsWith("pbkdf2$") ? System.getProperty("replay.password", "") : stored;
+   }//end password
+
+}//end WorkloadDriver
@@ -0,0 +1,52 @@
+-- Message search benchmark
+-- run with: psql -d <dbname> -v rows=100000000 -f bench_message_search.sql
+-- loads :rows synthetic messages between 100000 users into a copy of the
+-- Message table, builds the GIN index and times the search query of
+-- ProfNetwork.searchMessagesQuery for a common and a rare term
+
+\timing on
+
+DROP TABLE IF EXISTS Message_bench;
+CREATE TABLE Message_bench (LIKE Message INCLUDING DEFAULTS INCLUDING GENERATED);
+
+INSERT INTO Message_bench (msgId, senderId, receiverId, contents, sendTime, deleteStatus, status)
+SELECT g,
+       'user' || (g % 100000),
+       'user' || ((g * 7919) % 100000),
+       (ARRAY['meeting','project','lunch','offer','resume','interview','deadline','congrats','referral','hiring'])[1 + g % 10]
+          || ' ' || md5(g::text) || ' '
+          || (ARRAY['tomorrow','today','monday','friday','soon','later'])[1 + g % 6],
+       current_timestamp - (g || ' seconds')::interval,
+       0,
+       'Delivered'
+FROM generate_series(1, :rows) g;
+
+CREATE INDEX Message_bench_tsv on Message_bench USING GIN (contents_tsv);
+CREATE INDEX Message_bench_recv on Message_bench USING BTREE (receiverId);
+CREATE INDEX Message_bench_send on Message_bench USING BTREE (senderId);
+ANALYZE Message_bench;
+
+SELECT pg_size_pretty(pg_table_size('Message_bench')) AS table_size,
+       pg_size_pretty(pg_relation_size('Message_bench_tsv')) AS gin_size;
+
+-- common term, first page and a deep page
+EXPLAIN (ANALYZE, BUFFERS)
+select msgId, senderId, receiverId, sendTime, ts_rank(contents_tsv, q) as rank
+from Message_bench, websearch_to_tsquery('english', 'interview') q
+where contents_tsv @@ q AND (senderId = 'user42' OR receiverId = 'user42')
+order by ts_rank(contents_tsv, q) desc, msgId desc limit 20 offset 0;
+
+EXPLAIN (ANALYZE, BUFFERS)
+select msgId, senderId, receiverId, sendTime, ts_rank(contents_tsv, q) as rank
+from Message_bench, websearch_to_tsquery('english', 'interview') q
+where contents_tsv @@ q AND (senderId = 'user42' OR receiverId = 'user42')
+order by ts_rank(contents_tsv, q) desc, msgId desc limit 20 offset 200;
+
+-- rare term, two words
+EXPLAIN (ANALYZE, BUFFERS)
+select msgId, senderId, receiverId, sendTime, ts_rank(contents_tsv, q) as rank
+from Message_bench, websearch_to_tsquery('english', 'referral friday') q
+where contents_tsv @@ q AND (senderId = 'user42' OR receiverId = 'user42')
+order by ts_rank(contents_tsv, q) desc, msgId desc limit 20 offset 0;
+
+DROP TABLE Message_bench;
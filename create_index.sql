@@ -1,10 +1,29 @@
-CREATE UNIQUE INDEX usr_index on USR USING BTREE (userID);
+-- the primary keys of create_table.sql.txt already index userId, msgId and
+-- (userId, ...) of every table, only other lookups need an index here.
+-- Existing databases get the same set from migrations/ (MigrationRunner)
 
-CREATE UNIQUE INDEX Work_index on Work_Ex USING BTREE (userId,company,role,startDate);
+-- reverse side of a connection
+CREATE INDEX Conn_connectionId_index on Connection USING BTREE (connectionId);
 
-CREATE UNIQUE INDEX Edu_index on Edu_det USING BTREE (userId,major, degree);
+-- inbox, see ProfNetwork.receivedMessagesQuery
+CREATE INDEX Message_receiver_index on Message USING BTREE (receiverId, status);
 
-CREATE UNIQUE INDEX Message_index on Message USING BTREE (msgId);
+-- colleagues by company
+CREATE INDEX Work_company_index on Work_Ex USING BTREE (company);
 
-CREATE UNIQUE INDEX Conn_index on Connection USING BTREE (userId,connectionId);
+-- conversation thread between two users, see ProfNetwork.conversationQuery
+CREATE INDEX Message_conv_index on Message USING BTREE (least(senderId, receiverId), greatest(senderId, receiverId), sendTime, msgId);
+
+-- message search, see ProfNetwork.searchMessagesQuery
+CREATE INDEX Message_tsv_index on Message USING GIN (contents_tsv);
+
+-- users written since a directory refresh, see UserDirectory
+CREATE INDEX USR_version_index on USR USING BTREE (version);
+
+-- outbox of a user, see ActivityFeed
+CREATE INDEX ActivityEvent_actor_time_index on ActivityEvent USING BTREE (actorId, createdAt, eventId);
+
+-- profiles changed since a facet index refresh, and their pruning, see FacetIndex
+CREATE INDEX ProfileChange_version_index on ProfileChange USING BTREE (version);
+CREATE INDEX ProfileChange_changedAt_index on ProfileChange USING BTREE (changedAt);
                                                                                 
\ No newline at end of file
@@ -0,0 +1,8 @@
+-- The unique indexes of the old create_index.sql repeat the primary keys
+-- of create_table.sql.txt column for column. They double the index
+-- maintenance of every insert/update and no plan prefers them.
+DROP INDEX CONCURRENTLY IF EXISTS usr_index;
+DROP INDEX CONCURRENTLY IF EXISTS Work_index;
+DROP INDEX CONCURRENTLY IF EXISTS Edu_index;
+DROP INDEX CONCURRENTLY IF EXISTS Message_index;
+DROP INDEX CONCURRENTLY IF EXISTS Conn_index;
@@ -0,0 +1,11 @@
+-- Lookups the primary keys do not lead with.
+
+-- reverse side of a connection: the connectionid arm of the friendProfile
+-- and viewFriendsOfFriends checks, and who has a user as a friend
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Conn_connectionId_index on Connection USING BTREE (connectionId);
+
+-- inbox, see ProfNetwork.receivedMessagesQuery
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Message_receiver_index on Message USING BTREE (receiverId, status);
+
+-- colleagues by company
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Work_company_index on Work_Ex USING BTREE (company);
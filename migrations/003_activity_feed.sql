@@ -0,0 +1,28 @@
+-- activity feed, see ActivityFeed and create_table.sql.txt
+CREATE TABLE IF NOT EXISTS ActivityEvent(
+        eventId bigint NOT NULL,
+        actorId varchar(30) NOT NULL,
+        kind varchar(10) NOT NULL,
+        detail text NOT NULL,
+        createdAt timestamp default current_timestamp,
+        PRIMARY KEY(eventId));
+
+CREATE TABLE IF NOT EXISTS FeedHead(
+        userId varchar(30) NOT NULL,
+        head bigint NOT NULL,
+        PRIMARY KEY(userId));
+
+CREATE TABLE IF NOT EXISTS FeedItem(
+        userId varchar(30) NOT NULL,
+        slot integer NOT NULL,
+        eventId bigint NOT NULL,
+        actorId varchar(30) NOT NULL,
+        kind varchar(10) NOT NULL,
+        detail text NOT NULL,
+        createdAt timestamp NOT NULL,
+        PRIMARY KEY(userId,slot));
+
+-- the tables are new and empty, no need to build concurrently
+CREATE INDEX IF NOT EXISTS ActivityEvent_actor_index on ActivityEvent USING BTREE (actorId, eventId);
+
+CREATE SEQUENCE IF NOT EXISTS feed_seq start with 1 increment by 1000;
@@ -0,0 +1,43 @@
+-- char(n) pads every value with spaces up to n, so the keys and texts of
+-- Work_Ex, Edu_det, Message and Connection are stored and indexed at full
+-- width, and comparing them with the varchar(30) USR.userId needs a cast.
+-- Everything becomes varchar of the same length, trailing pads removed.
+--
+-- The ALTERs rewrite the tables and their indexes under an ACCESS
+-- EXCLUSIVE lock. The runner only bounds the wait for the lock
+-- (-Dmigrate.lockTimeout), run this in a quiet period on large tables.
+
+-- a generated column pins the type of its input, contents_tsv is added
+-- back below (Message_tsv_index goes with the column)
+ALTER TABLE Message DROP COLUMN IF EXISTS contents_tsv;
+
+ALTER TABLE USR
+        ALTER COLUMN name TYPE varchar(50) USING rtrim(name);
+
+ALTER TABLE Work_Ex
+        ALTER COLUMN userId TYPE varchar(30) USING rtrim(userId),
+        ALTER COLUMN company TYPE varchar(50) USING rtrim(company),
+        ALTER COLUMN role TYPE varchar(50) USING rtrim(role),
+        ALTER COLUMN location TYPE varchar(50) USING rtrim(location);
+
+ALTER TABLE Edu_det
+        ALTER COLUMN userId TYPE varchar(30) USING rtrim(userId),
+        ALTER COLUMN instituitionName TYPE varchar(50) USING rtrim(instituitionName),
+        ALTER COLUMN major TYPE varchar(50) USING rtrim(major),
+        ALTER COLUMN degree TYPE varchar(50) USING rtrim(degree);
+
+ALTER TABLE Message
+        ALTER COLUMN senderId TYPE varchar(30) USING rtrim(senderId),
+        ALTER COLUMN receiverId TYPE varchar(30) USING rtrim(receiverId),
+        ALTER COLUMN contents TYPE varchar(500) USING rtrim(contents),
+        ALTER COLUMN status TYPE varchar(30) USING rtrim(status);
+
+ALTER TABLE Message
+        ADD COLUMN contents_tsv tsvector GENERATED ALWAYS AS (to_tsvector('english', contents)) STORED;
+
+CREATE INDEX Message_tsv_index on Message USING GIN (contents_tsv);
+
+ALTER TABLE Connection
+        ALTER COLUMN userId TYPE varchar(30) USING rtrim(userId),
+        ALTER COLUMN connectionId TYPE varchar(30) USING rtrim(connectionId),
+        ALTER COLUMN status TYPE varchar(30) USING rtrim(status);
@@ -0,0 +1,6 @@
+-- USR.password holds a salted PBKDF2 hash since passwords are hashed
+-- (SessionManager.hashPassword), about 83 characters. The varchar(30) of
+-- older databases makes the rehash of a legacy password on login fail.
+-- Widening a varchar does not rewrite the table.
+ALTER TABLE USR
+        ALTER COLUMN password TYPE varchar(128);
@@ -0,0 +1,35 @@
+-- Message ids are supplied by the writers (MessageIdAllocator) from blocks
+-- of INCREMENT BY ids reserved in msgid_seq. The old def() trigger
+-- overwrote every supplied msgId with a nextval of its own, see
+-- trigger.sql.txt. Raising the increment does not reuse an id, the next
+-- block starts above every id handed out so far.
+ALTER SEQUENCE msgid_seq INCREMENT BY 1000;
+
+create or replace function def()
+returns "trigger" as
+$BODY$
+begin
+if NEW.msgId is null then
+   NEW.msgId := nextval('msgid_seq');
+end if;
+return NEW;
+end;
+$BODY$
+language plpgsql volatile;
+
+-- new message alerts (NotificationListener)
+create or replace function notify_message()
+returns "trigger" as
+$BODY$
+begin
+perform pg_notify('new_message', NEW.receiverId || ',' || NEW.senderId || ',' || NEW.msgId);
+return NEW;
+end;
+$BODY$
+language plpgsql volatile;
+
+DROP TRIGGER IF EXISTS message_notify ON Message;
+
+create trigger message_notify after insert
+on Message for each row
+execute procedure notify_message();
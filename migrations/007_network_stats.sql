@@ -0,0 +1,40 @@
+-- tables of the NetworkStats job, see create_table.sql.txt. The friend
+-- request depth check reads UserNetworkStats, run "--stats" (not
+-- incremental) once after this migration to fill it.
+CREATE TABLE IF NOT EXISTS UserNetworkStats(
+        userId varchar(30) NOT NULL,
+        degree integer NOT NULL,
+        componentId varchar(30) NOT NULL,
+        twoHopReach integer NOT NULL,
+        PRIMARY KEY(userId));
+
+CREATE TABLE IF NOT EXISTS MutualFriends(
+        userA varchar(30) NOT NULL,
+        userB varchar(30) NOT NULL,
+        mutualCount integer NOT NULL,
+        PRIMARY KEY(userA,userB));
+
+CREATE TABLE IF NOT EXISTS NetworkStats_dirty(
+        seq serial NOT NULL,
+        userId varchar(30) NOT NULL,
+        PRIMARY KEY(seq));
+
+create or replace function mark_stats_dirty()
+returns "trigger" as
+$BODY$
+begin
+if TG_OP = 'DELETE' then
+   insert into NetworkStats_dirty(userId) values (OLD.userId);
+   return OLD;
+end if;
+insert into NetworkStats_dirty(userId) values (NEW.userId);
+return NEW;
+end;
+$BODY$
+language plpgsql volatile;
+
+DROP TRIGGER IF EXISTS connection_stats_dirty ON Connection;
+
+create trigger connection_stats_dirty after insert or update or delete
+on Connection for each row
+execute procedure mark_stats_dirty();
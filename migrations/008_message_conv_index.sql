@@ -0,0 +1,2 @@
+-- conversation thread between two users, see ProfNetwork.conversationQuery
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Message_conv_index on Message USING BTREE (least(senderId, receiverId), greatest(senderId, receiverId), sendTime, msgId);
@@ -0,0 +1,5 @@
+-- an outbox is read newest first by createdAt, then eventId (see
+-- ActivityFeed), eventIds are not in time order across processes
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ActivityEvent_actor_time_index on ActivityEvent USING BTREE (actorId, createdAt, eventId);
+
+DROP INDEX CONCURRENTLY IF EXISTS ActivityEvent_actor_index;
@@ -0,0 +1,28 @@
+-- USR.version is the id of the transaction that last wrote the row, the
+-- user directory (UserDirectory) reads the rows written since its last
+-- refresh with it. A row count can not tell a rename from no change.
+ALTER TABLE USR
+        ADD COLUMN IF NOT EXISTS version bigint;
+
+ALTER TABLE USR
+        ALTER COLUMN version SET DEFAULT txid_current();
+
+UPDATE USR SET version = txid_current() WHERE version IS NULL;
+
+create or replace function usr_version()
+returns "trigger" as
+$BODY$
+begin
+NEW.version := txid_current();
+return NEW;
+end;
+$BODY$
+language plpgsql volatile;
+
+DROP TRIGGER IF EXISTS usr_version ON USR;
+
+create trigger usr_version before update
+on USR for each row
+execute procedure usr_version();
+
+CREATE INDEX IF NOT EXISTS USR_version_index on USR USING BTREE (version);
@@ -0,0 +1,37 @@
+-- one row per written Work_Ex or Edu_det row, with the transaction that
+-- wrote it. The facet index (FacetIndex) of every session re-reads the
+-- users changed since its mark, and prunes rows older than a day.
+CREATE TABLE IF NOT EXISTS ProfileChange(
+        userId varchar(30) NOT NULL,
+        version bigint NOT NULL default txid_current(),
+        changedAt timestamp NOT NULL default current_timestamp);
+
+CREATE INDEX IF NOT EXISTS ProfileChange_version_index on ProfileChange USING BTREE (version);
+
+CREATE INDEX IF NOT EXISTS ProfileChange_changedAt_index on ProfileChange USING BTREE (changedAt);
+
+create or replace function mark_profile_changed()
+returns "trigger" as
+$BODY$
+begin
+if TG_OP = 'DELETE' then
+   insert into ProfileChange(userId) values (OLD.userId);
+   return OLD;
+end if;
+insert into ProfileChange(userId) values (NEW.userId);
+return NEW;
+end;
+$BODY$
+language plpgsql volatile;
+
+DROP TRIGGER IF EXISTS work_ex_changed ON Work_Ex;
+
+create trigger work_ex_changed after insert or update or delete
+on Work_Ex for each row
+execute procedure mark_profile_changed();
+
+DROP TRIGGER IF EXISTS edu_det_changed ON Edu_det;
+
+create trigger edu_det_changed after insert or update or delete
+on Edu_det for each row
+execute procedure mark_profile_changed();
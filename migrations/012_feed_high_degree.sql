@@ -0,0 +1,16 @@
+-- a user whose events are not fanned out is flagged on the user's FeedHead
+-- row, so every process merges the same outboxes (see ActivityFeed)
+ALTER TABLE FeedHead
+        ADD COLUMN IF NOT EXISTS highDegree boolean NOT NULL DEFAULT false;
+
+-- users already over the default -Dfeed.fanoutLimit, the next event of
+-- every user sets or clears the flag
+INSERT INTO FeedHead (userId, head, highDegree)
+        SELECT userId, 0, true FROM UserNetworkStats WHERE degree > 1000
+        ON CONFLICT (userId) DO UPDATE SET highDegree = true;
+
+-- outboxes keep the newest ActivityFeed.FEED_SIZE (200) events of an actor
+DELETE FROM ActivityEvent e
+        USING (SELECT eventId, row_number() OVER (PARTITION BY actorId ORDER BY createdAt DESC, eventId DESC) AS n
+               FROM ActivityEvent) r
+        WHERE e.eventId = r.eventId AND r.n > 200;